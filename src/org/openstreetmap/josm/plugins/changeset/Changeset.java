@@ -3,7 +3,10 @@ package org.openstreetmap.josm.plugins.changeset;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BoundedChangesetDataSet;
+import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BuildListener;
 
 /**
  * A class to draw a changeset layer
@@ -24,4 +27,81 @@ public final class Changeset {
         ChangesetDraw.draw(tofixLayer, data);
     }
 
+    /**
+     * Shows a changeset while it is being loaded. The layer is added and zoomed to as soon as the
+     * first primitives arrive, later batches and the complete changeset only repaint it, so the user can
+     * pan away while it loads.
+     */
+    public static final class ProgressiveWork implements BuildListener {
+        /** Minimum time between two repaints caused by new data, in nanoseconds */
+        private static final long REPAINT_INTERVAL = 200_000_000L;
+
+        private final String changesetId;
+        /** Only accessed in the EDT */
+        private ChangesetLayer layer;
+        /** Only accessed in the EDT */
+        private boolean failed;
+        /** Only accessed on the building thread */
+        private long lastUpdate;
+
+        /**
+         * Create a new {@link ProgressiveWork}
+         * @param changesetId The changeset id to show
+         */
+        public ProgressiveWork(String changesetId) {
+            this.changesetId = changesetId;
+        }
+
+        @Override
+        public void dataSetGrown(BoundedChangesetDataSet data) {
+            long now = System.nanoTime();
+            if (lastUpdate != 0 && now - lastUpdate < REPAINT_INTERVAL) {
+                // A layer showing a JOSM dataset already holds the growing dataset and shows the new primitives on
+                // the next repaint. A compact geometry is a snapshot, so its new objects only show with a later
+                // update or with the complete changeset.
+                return;
+            }
+            lastUpdate = now;
+            GuiHelper.runInEDT(() -> {
+                if (failed) {
+                    return;
+                }
+                if (layer == null) {
+                    layer = new ChangesetLayer(tr("Changeset: {0}", changesetId));
+                    ChangesetDraw.draw(layer, data);
+                } else if (!isRemoved()) {
+                    layer.setDataSet(data);
+                }
+            });
+        }
+
+        /**
+         * Show the complete changeset. Must be called in the EDT.
+         * @param data The data to show
+         */
+        public void finish(BoundedChangesetDataSet data) {
+            if (layer == null) {
+                work(data, changesetId);
+            } else if (!isRemoved()) {
+                layer.setDataSet(data);
+            }
+        }
+
+        /**
+         * Remove the partly loaded changeset, because loading it failed. Must be called in the EDT.
+         */
+        public void fail() {
+            failed = true;
+            if (layer != null && !isRemoved()) {
+                MainApplication.getLayerManager().removeLayer(layer);
+            }
+        }
+
+        /**
+         * Check if the user already deleted the layer while the changeset was loading
+         */
+        private boolean isRemoved() {
+            return !MainApplication.getLayerManager().containsLayer(layer);
+        }
+    }
 }
@@ -2,24 +2,32 @@
 package org.openstreetmap.josm.plugins.changeset;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
 
 import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import javax.swing.AbstractAction;
 import org.openstreetmap.josm.data.Bounds;
 import javax.swing.BorderFactory;
+import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
+import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
 import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingConstants;
 
 import org.openstreetmap.josm.gui.MainApplication;
@@ -31,7 +39,10 @@ import org.openstreetmap.josm.plugins.changeset.util.CellRenderer;
 import org.openstreetmap.josm.plugins.changeset.util.ChangesetBeen;
 import org.openstreetmap.josm.plugins.changeset.util.ChangesetController;
 import org.openstreetmap.josm.plugins.changeset.util.ChangesetController.OsmchaResult;
+import org.openstreetmap.josm.plugins.changeset.util.ChangesetListModel;
+import org.openstreetmap.josm.plugins.changeset.util.ChangesetPrefetcher;
 import org.openstreetmap.josm.plugins.changeset.util.Config;
+import org.openstreetmap.josm.plugins.changeset.util.OsmchaPageCache;
 import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BoundedChangesetDataSet;
 import org.openstreetmap.josm.tools.GBC;
 import org.openstreetmap.josm.tools.ImageProvider;
@@ -44,21 +55,17 @@ import org.openstreetmap.josm.tools.Shortcut;
  * @author ruben
  */
 public final class ChangesetDialog extends ToggleDialog {
+    /** Number of rows the changeset list shows without scrolling */
+    private static final int VISIBLE_ROWS = 8;
+
     private Future<?> buttonUpdater;
 
     private final JosmTextField jTextFieldChangesetId;
     private final ListCellRenderer<ChangesetBeen> renderer = new CellRenderer();
     private final JProgressBar progressBar = new JProgressBar();
-    private final JComboBox<ChangesetBeen> jComboBox = new JComboBox<>();
-    private final JButton jButtonPrev = new JButton("<");
-    private final JButton jButtonNext = new JButton(">");
-    private final JLabel pageLabel = new JLabel("", SwingConstants.CENTER);
-
-    private boolean updatingComboBox;
-    private int currentPage = 1;
-    private int totalPages = 1;
-    private int totalCount;
-    private String currentBbox = "";
+    private final JList<ChangesetBeen> changesetList = new JList<>();
+    private final JLabel countLabel = new JLabel("", SwingConstants.CENTER);
+    private ChangesetListModel changesetListModel;
 
     /**
      * Create a new {@link ChangesetDialog} object
@@ -74,7 +81,10 @@ public final class ChangesetDialog extends ToggleDialog {
         // Platform selector (OSM / OHM)
         JComboBox<Config.Platform> platformSelector = new JComboBox<>(Config.Platform.values());
         platformSelector.setSelectedItem(Config.getPlatform());
-        platformSelector.addActionListener(e -> Config.setPlatform((Config.Platform) platformSelector.getSelectedItem()));
+        platformSelector.addActionListener(e -> {
+            ChangesetPrefetcher.cancel();
+            Config.setPlatform((Config.Platform) platformSelector.getSelectedItem());
+        });
         jPanelProjects.add(platformSelector, GBC.eol().fill(GBC.HORIZONTAL));
 
         // "Get changesets from OSMCha" button
@@ -86,18 +96,16 @@ public final class ChangesetDialog extends ToggleDialog {
         progressBar.setIndeterminate(true);
         jPanelProjects.add(progressBar, GBC.eol().fill(GBC.HORIZONTAL));
 
-        // Dropdown
-        jComboBox.setRenderer(renderer);
-        jPanelProjects.add(jComboBox, GBC.eol().fill(GBC.HORIZONTAL));
-
-        // Pagination row: < Page x/y (total) >
-        JPanel pageRow = new JPanel(new GridBagLayout());
-        jButtonPrev.setEnabled(false);
-        jButtonNext.setEnabled(false);
-        pageRow.add(jButtonPrev, GBC.std());
-        pageRow.add(pageLabel, GBC.std().fill(GBC.HORIZONTAL).weight(1, 0));
-        pageRow.add(jButtonNext, GBC.eol());
-        jPanelProjects.add(pageRow, GBC.eol().fill(GBC.HORIZONTAL));
+        // Changeset list, rows are fetched from OSMCha as they are scrolled into view
+        changesetList.setCellRenderer(renderer);
+        changesetList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // A fixed row size, so the list does not render every row to lay itself out
+        changesetList.setPrototypeCellValue(CellRenderer.createPrototypeValue());
+        changesetList.setVisibleRowCount(VISIBLE_ROWS);
+        JScrollPane changesetScrollPane = new JScrollPane(changesetList);
+        changesetScrollPane.getViewport().addChangeListener(e -> loadVisibleChangesets());
+        jPanelProjects.add(changesetScrollPane, GBC.eol().fill(GBC.BOTH));
+        jPanelProjects.add(countLabel, GBC.eol().fill(GBC.HORIZONTAL));
 
         // Manual changeset ID field
         jTextFieldChangesetId = new JosmTextField();
@@ -108,29 +116,18 @@ public final class ChangesetDialog extends ToggleDialog {
         // --- Listeners ---
 
         jButtonOsmcha.addActionListener(e -> {
-            currentPage = 1;
-            fetchOsmchaPage();
-        });
-
-        jButtonPrev.addActionListener(e -> {
-            if (currentPage > 1) {
-                currentPage--;
-                fetchOsmchaPage();
-            }
-        });
-
-        jButtonNext.addActionListener(e -> {
-            if (currentPage < totalPages) {
-                currentPage++;
-                fetchOsmchaPage();
-            }
+            // Asking again shows the latest changesets, not the pages seen before
+            OsmchaPageCache.clear();
+            fetchOsmchaChangesets();
         });
 
-        jComboBox.addActionListener(e -> {
-            if (!updatingComboBox) {
-                ChangesetBeen ch = (ChangesetBeen) jComboBox.getSelectedItem();
+        changesetList.addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && changesetListModel != null) {
+                int index = changesetList.getSelectedIndex();
+                ChangesetBeen ch = index >= 0 ? changesetListModel.getLoadedElementAt(index) : null;
                 if (ch != null) {
                     jTextFieldChangesetId.setText(String.valueOf(ch.getChangesetId()));
+                    prefetchAfter(index);
                 }
             }
         });
@@ -171,86 +168,98 @@ public final class ChangesetDialog extends ToggleDialog {
         createLayout(jPanelProjects, false, Arrays.asList(displayChangesetButton, openChangesetweb));
     }
 
-    private synchronized void fetchOsmchaPage() {
+    private synchronized void fetchOsmchaChangesets() {
         if (this.buttonUpdater != null) {
             this.buttonUpdater.cancel(true);
         }
-        if (currentPage == 1) {
-            Bounds bounds = MainApplication.getMap().mapView.getRealBounds();
-            currentBbox = bounds.getMinLon() + "," + bounds.getMinLat() + "," + bounds.getMaxLon() + "," + bounds.getMaxLat();
-        }
+        Bounds bounds = MainApplication.getMap().mapView.getRealBounds();
+        String bbox = bounds.getMinLon() + "," + bounds.getMinLat() + "," + bounds.getMaxLon() + "," + bounds.getMaxLat();
+        ChangesetPrefetcher.cancel();
+        setChangesetListModel(null);
         progressBar.setVisible(true);
-        jComboBox.setVisible(false);
-        updatingComboBox = true;
-        jComboBox.removeAllItems();
-        updatingComboBox = false;
-        jComboBox.setEnabled(false);
-        jButtonPrev.setEnabled(false);
-        jButtonNext.setEnabled(false);
-        this.buttonUpdater = MainApplication.worker.submit(() -> {
-            try {
-                OsmchaResult result = ChangesetController.fetchChangesetsFromOsmcha(currentBbox, currentPage);
-                GuiHelper.runInEDT(() -> {
-                    totalCount = result.getTotalCount();
-                    totalPages = result.getTotalPages();
-                    updatingComboBox = true;
-                    jComboBox.removeAllItems();
-                    for (ChangesetBeen cs : result.getChangesets()) {
-                        jComboBox.addItem(cs);
-                    }
-                    updatingComboBox = false;
-                    jComboBox.setEnabled(true);
-                    progressBar.setVisible(false);
-                    jComboBox.setVisible(true);
-                    updatePageControls();
-                });
-            } finally {
-                GuiHelper.runInEDT(() -> {
-                    progressBar.setVisible(false);
-                    jComboBox.setVisible(true);
-                });
+        countLabel.setText("");
+        // Cancelling the future aborts the download, so rapid re-queries do not pile up
+        CompletableFuture<OsmchaResult> future = ChangesetController.fetchChangesetsFromOsmchaAsync(bbox, 1);
+        this.buttonUpdater = future;
+        future.whenComplete((result, error) -> GuiHelper.runInEDT(() -> {
+            if (future != buttonUpdater) {
+                // A newer fetch owns the controls
+                return;
             }
-        });
+            if (error != null) {
+                Logging.warn("Could not fetch from OSMCha: " + error.getMessage());
+                countLabel.setText(tr("Could not get the changesets from OSMCha"));
+            } else if (result != null) {
+                ChangesetListModel model = new ChangesetListModel(bbox, result);
+                setChangesetListModel(model);
+                countLabel.setText(model.getSize() == 0 ? tr("No changesets found")
+                        : trn("{0} changeset", "{0} changesets", model.getSize(), model.getSize()));
+            }
+            progressBar.setVisible(false);
+        }));
+    }
+
+    private void setChangesetListModel(ChangesetListModel model) {
+        if (changesetListModel != null) {
+            changesetListModel.dispose();
+        }
+        changesetListModel = model;
+        changesetList.setModel(model != null ? model : new DefaultListModel<>());
+        loadVisibleChangesets();
     }
 
-    private void updatePageControls() {
-        if (totalCount == 0) {
-            pageLabel.setText(tr("No changesets found"));
-            jButtonPrev.setEnabled(false);
-            jButtonNext.setEnabled(false);
-        } else if (totalPages <= 1) {
-            pageLabel.setText(totalCount + " changesets");
-            jButtonPrev.setEnabled(false);
-            jButtonNext.setEnabled(false);
-        } else {
-            pageLabel.setText(tr("Page {0} / {1} ({2} total)", currentPage, totalPages, totalCount));
-            jButtonPrev.setEnabled(currentPage > 1);
-            jButtonNext.setEnabled(currentPage < totalPages);
+    /**
+     * Fetch the pages of the changesets scrolled into view
+     */
+    private void loadVisibleChangesets() {
+        if (changesetListModel != null) {
+            changesetListModel.loadRows(changesetList.getFirstVisibleIndex(), changesetList.getLastVisibleIndex());
+        }
+    }
+
+    /**
+     * Load the changesets following the selected one in the background, so stepping through the list is fast
+     * @param index The index of the selected changeset
+     */
+    private void prefetchAfter(int index) {
+        List<String> changesetIds = new ArrayList<>();
+        for (int i = index + 1; i < changesetListModel.getSize() && changesetIds.size() < Config.getPrefetchCount(); i++) {
+            ChangesetBeen ch = changesetListModel.getLoadedElementAt(i);
+            if (ch == null) {
+                break;
+            }
+            changesetIds.add(String.valueOf(ch.getChangesetId()));
         }
+        ChangesetBeen selected = changesetListModel.getLoadedElementAt(index);
+        ChangesetPrefetcher.prefetch(selected != null ? String.valueOf(selected.getChangesetId()) : null, changesetIds);
     }
 
     /**
-     * Load and show a changeset with a progress indicator
+     * Load and show a changeset with a progress indicator.
+     * The changeset layer is shown as soon as the first primitives have been read.
      * @param changesetId The id to show
      */
     private void loadAndShowChangeset(String changesetId) {
         progressBar.setVisible(true);
+        Changeset.ProgressiveWork work = new Changeset.ProgressiveWork(changesetId);
         MainApplication.worker.submit(() -> {
             try {
-                BoundedChangesetDataSet boundedDataSet = ChangesetController.getChangeset(changesetId);
+                BoundedChangesetDataSet boundedDataSet = ChangesetController.getChangeset(changesetId, work);
                 GuiHelper.runInEDT(() -> {
                     progressBar.setVisible(false);
                     if (boundedDataSet == null) {
+                        work.fail();
                         JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
                                 tr("Check the right changeset Id, if it is ok, maybe the changeset was not processed yet, try again in few minutes!"));
                     } else {
-                        Changeset.work(boundedDataSet, changesetId);
+                        work.finish(boundedDataSet);
                     }
                 });
             } catch (java.net.SocketTimeoutException ex) {
                 Logging.warn("Timeout fetching changeset " + changesetId + ": " + ex.getMessage());
                 GuiHelper.runInEDT(() -> {
                     progressBar.setVisible(false);
+                    work.fail();
                     JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
                             tr("The request timed out. The changeset may be too old or too large for the Overpass API. Try again later."));
                 });
@@ -258,6 +267,7 @@ public final class ChangesetDialog extends ToggleDialog {
                 Logging.warn(ex.getMessage());
                 GuiHelper.runInEDT(() -> {
                     progressBar.setVisible(false);
+                    work.fail();
                     JOptionPane.showMessageDialog(MainApplication.getMainFrame(), ex.getMessage());
                 });
             }
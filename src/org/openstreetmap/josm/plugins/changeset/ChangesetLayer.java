@@ -13,14 +13,17 @@ import java.awt.Stroke;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.geom.GeneralPath;
+import java.awt.geom.Point2D;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.JOptionPane;
 
 import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.coor.ILatLon;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.Way;
@@ -31,6 +34,7 @@ import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.dialogs.LayerListDialog;
 import org.openstreetmap.josm.gui.dialogs.LayerListPopup;
 import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.plugins.changeset.util.ChangesetGeometry;
 import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BoundedChangesetDataSet;
 import org.openstreetmap.josm.tools.ImageProvider;
 
@@ -88,10 +92,26 @@ public class ChangesetLayer extends Layer implements ActionListener {
 
     @Override
     public void paint(Graphics2D g, final MapView mv, Bounds bounds) {
+        ChangesetGeometry geometry = dataSet.getGeometry();
+        if (geometry != null) {
+            paintGeometry(g, mv, bounds, geometry);
+            return;
+        }
         DataSet data = dataSet.getDataSet();
         if (data == null) {
             return;
         }
+        // The dataset may still be growing while the changeset loads
+        Lock readLock = data.getReadLock();
+        readLock.lock();
+        try {
+            paintDataSet(g, mv, bounds, data);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private static void paintDataSet(Graphics2D g, MapView mv, Bounds bounds, DataSet data) {
         Stroke originalStroke = g.getStroke();
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
 
@@ -171,6 +191,95 @@ public class ChangesetLayer extends Layer implements ActionListener {
         g.setStroke(originalStroke);
     }
 
+    private static void paintGeometry(Graphics2D g, MapView mv, Bounds bounds, ChangesetGeometry geometry) {
+        Stroke originalStroke = g.getStroke();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        // Resolve colors once per paint call, indexed by the action code without the relation flag
+        Color[] colors = new Color[4];
+        colors[ChangesetGeometry.CREATE] = CREATED_COLOR.get();
+        colors[ChangesetGeometry.DELETE] = DELETED_COLOR.get();
+        colors[ChangesetGeometry.MODIFY_OLD] = MODIFIED_OLD.get();
+        colors[ChangesetGeometry.MODIFY_NEW] = MODIFIED_NEW.get();
+
+        int minLat = ChangesetGeometry.toFixed(bounds.getMinLat());
+        int minLon = ChangesetGeometry.toFixed(bounds.getMinLon());
+        int maxLat = ChangesetGeometry.toFixed(bounds.getMaxLat());
+        int maxLon = ChangesetGeometry.toFixed(bounds.getMaxLon());
+        FixedLatLon latLon = new FixedLatLon();
+
+        // Batch lines by action code into GeneralPaths
+        GeneralPath[] paths = new GeneralPath[colors.length * 2];
+        for (int line = 0; line < geometry.getLineCount(); line++) {
+            byte action = geometry.getLineAction(line);
+            int start = geometry.getLineStart(line);
+            int end = geometry.getLineEnd(line);
+            if (action < 0 || end - start < 2 || !geometry.lineIntersects(line, minLat, minLon, maxLat, maxLon)) {
+                continue;
+            }
+            if (paths[action] == null) {
+                paths[action] = new GeneralPath();
+            }
+            GeneralPath path = paths[action];
+            for (int vertex = start; vertex < end; vertex++) {
+                Point2D p = mv.getPoint2D(latLon.set(geometry.getVertexLat(vertex), geometry.getVertexLon(vertex)));
+                if (vertex == start) {
+                    path.moveTo(p.getX(), p.getY());
+                } else {
+                    path.lineTo(p.getX(), p.getY());
+                }
+            }
+        }
+        for (int action = 0; action < paths.length; action++) {
+            if (paths[action] != null) {
+                // Relation rectangles are dashed
+                g.setStroke((action & ChangesetGeometry.RELATION) != 0 ? DASHED_STROKE : DEFAULT_STROKE);
+                drawPath(g, paths[action], colors[action & ~ChangesetGeometry.RELATION]);
+            }
+        }
+
+        // Draw standalone nodes
+        g.setStroke(DEFAULT_STROKE);
+        for (int point = 0; point < geometry.getPointCount(); point++) {
+            byte action = geometry.getPointAction(point);
+            int lat = geometry.getPointLat(point);
+            int lon = geometry.getPointLon(point);
+            if (action < 0 || (action & ChangesetGeometry.RELATION) != 0
+                    || lat < minLat || lat > maxLat || lon < minLon || lon > maxLon) {
+                continue;
+            }
+            g.setColor(colors[action]);
+            Point2D pnt = mv.getPoint2D(latLon.set(lat, lon));
+            g.fillOval((int) pnt.getX() - 3, (int) pnt.getY() - 3, 7, 7);
+        }
+
+        g.setStroke(originalStroke);
+    }
+
+    /**
+     * A reusable coordinate, so painting a {@link ChangesetGeometry} does not create a LatLon per vertex
+     */
+    private static final class FixedLatLon implements ILatLon {
+        private double lat;
+        private double lon;
+
+        FixedLatLon set(int fixedLat, int fixedLon) {
+            this.lat = ChangesetGeometry.toDegrees(fixedLat);
+            this.lon = ChangesetGeometry.toDegrees(fixedLon);
+            return this;
+        }
+
+        @Override
+        public double lat() {
+            return lat;
+        }
+
+        @Override
+        public double lon() {
+            return lon;
+        }
+    }
+
     private static void appendWayToPath(GeneralPath path, MapView mv, List<Node> nodes) {
         boolean started = false;
         for (Node node : nodes) {
@@ -0,0 +1,296 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * A disk cache of downloaded adiffs, in the JOSM cache directory. Entries are kept gzip compressed and
+ * keyed by platform and changeset id. When the cache grows beyond its budget, the least recently used
+ * entries are deleted; the modification time of an entry is its last use.
+ * <p>
+ * Adiffs are only requested for closed changesets, which never change, so an entry never expires. Only the
+ * files of the adiffs host are cached: the Overpass API may not know all changes of a recently closed
+ * changeset yet, and an Overpass result can not be told apart from a complete one.
+ * @author ruben
+ */
+public final class AdiffCache {
+    private static final String SUFFIX = ".adiff.gz";
+
+    private AdiffCache() {
+        // Hide constructor
+    }
+
+    /**
+     * Open the cached adiff of a changeset of the current platform
+     * @param changesetId The changeset id
+     * @return The uncompressed adiff, or {@code null} if it is not cached
+     */
+    public static InputStream get(String changesetId) {
+        Path file = getFile(changesetId);
+        if (file == null || !Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            InputStream in = new GZIPInputStream(Files.newInputStream(file), 64 * 1024);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return in;
+        } catch (IOException e) {
+            Logging.warn("Could not read cached adiff " + file + ": " + e.getMessage());
+            remove(changesetId);
+            return null;
+        }
+    }
+
+    /**
+     * Remove the cached adiff of a changeset of the current platform, e.g. because it could not be parsed
+     * @param changesetId The changeset id
+     */
+    public static void remove(String changesetId) {
+        Path file = getFile(changesetId);
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                Logging.warn(e);
+            }
+        }
+    }
+
+    /**
+     * Hand a downloaded adiff to a handler and store a copy of it in the cache. The copy is only kept if the
+     * handler succeeds, its result is accepted and the download is complete.
+     * @param changesetId The changeset id
+     * @param content The downloaded adiff
+     * @param handler The handler consuming the adiff
+     * @param accept Checks that the result of the handler was read from a valid adiff
+     * @param <T> The type of the result
+     * @return The result of the handler
+     * @throws IOException if the handler failed
+     */
+    public static <T> T store(String changesetId, InputStream content, Request.ContentHandler<T> handler,
+            Predicate<? super T> accept) throws IOException {
+        Path file = getFile(changesetId);
+        if (file == null || Config.getDiskCacheSize() <= 0) {
+            return handler.handle(content);
+        }
+        Path tmp = null;
+        try {
+            Files.createDirectories(file.getParent());
+            tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        } catch (IOException e) {
+            Logging.warn("Could not create adiff cache entry: " + e.getMessage());
+            return handler.handle(content);
+        }
+        try {
+            T result;
+            try (CopyingInputStream in = new CopyingInputStream(content,
+                    new GZIPOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+                result = handler.handle(in);
+                if (result == null || !accept.test(result)) {
+                    Logging.info("Not caching the adiff of changeset " + changesetId + ", it could not be read completely");
+                    return result;
+                }
+                in.finish();
+                if (in.isComplete()) {
+                    move(tmp, file);
+                    evict(file.getParent());
+                }
+            }
+            return result;
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                Logging.trace(e);
+            }
+        }
+    }
+
+    private static void move(Path source, Path target) {
+        try {
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Logging.trace(e);
+                Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            Logging.warn("Could not store adiff cache entry " + target + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits its budget
+     */
+    private static synchronized void evict(Path directory) {
+        List<Path> files = new ArrayList<>();
+        long size = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+                size += Files.size(file);
+            }
+        } catch (IOException e) {
+            Logging.warn(e);
+            return;
+        }
+        long budget = Config.getDiskCacheSize();
+        if (size <= budget) {
+            return;
+        }
+        files.sort(Comparator.comparingLong(AdiffCache::lastModified));
+        for (Path file : files) {
+            if (size <= budget) {
+                break;
+            }
+            try {
+                long fileSize = Files.size(file);
+                Files.delete(file);
+                size -= fileSize;
+            } catch (IOException e) {
+                // In use on Windows or already gone, try the next one
+                Logging.trace(e);
+            }
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Get the cache file of a changeset of the current platform
+     * @return The file, or {@code null} if the id can not be used as a file name
+     */
+    private static Path getFile(String changesetId) {
+        if (changesetId == null || !changesetId.matches("\\d+")) {
+            return null;
+        }
+        File cacheDir = org.openstreetmap.josm.spi.preferences.Config.getDirs().getCacheDirectory(true);
+        String platform = Config.getPlatform().name().toLowerCase(Locale.ROOT);
+        return cacheDir.toPath().resolve("changeset-viewer").resolve(platform + "-" + changesetId + SUFFIX);
+    }
+
+    /**
+     * Copies everything read from a stream to the compressed cache file. A failing copy never fails the read.
+     */
+    private static final class CopyingInputStream extends FilterInputStream {
+        private final OutputStream copy;
+        private boolean failed;
+        private boolean eof;
+        private boolean complete;
+
+        CopyingInputStream(InputStream in, OutputStream copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                eof = true;
+            } else {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n < 0) {
+                eof = true;
+            } else {
+                write(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes must end up in the copy as well
+            byte[] buffer = new byte[(int) Math.min(n, 8192)];
+            return Math.max(read(buffer, 0, buffer.length), 0);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Read the rest of the stream, which the handler may have left, and complete the copy
+         */
+        void finish() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (!failed && !eof) {
+                read(buffer, 0, buffer.length);
+            }
+            if (!failed) {
+                try {
+                    copy.close();
+                    complete = true;
+                } catch (IOException e) {
+                    Logging.warn("Could not write adiff cache entry: " + e.getMessage());
+                    failed = true;
+                }
+            }
+        }
+
+        /**
+         * Check if the whole stream was copied
+         * @return {@code true} if the copy can be used
+         */
+        boolean isComplete() {
+            return complete;
+        }
+
+        private void write(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                copy.write(b, off, len);
+            } catch (IOException e) {
+                Logging.warn("Could not write adiff cache entry: " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!complete) {
+                try {
+                    copy.close();
+                } catch (IOException e) {
+                    Logging.trace(e);
+                }
+            }
+            super.close();
+        }
+    }
+}
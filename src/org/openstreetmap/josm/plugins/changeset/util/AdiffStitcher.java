@@ -0,0 +1,354 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.openstreetmap.josm.tools.XmlUtils;
+
+/**
+ * Joins the adiffs of consecutive time slices into one adiff for the whole time window.
+ * An object changed in several slices ends up with its state before the first slice and after the last one,
+ * and an object created and deleted within the window is dropped.
+ * @author ruben
+ */
+final class AdiffStitcher {
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private AdiffStitcher() {
+        // Hide constructor
+    }
+
+    /**
+     * Thrown when the server reports that a query failed, e.g. because it ran out of time or memory.
+     * The output of the query is incomplete, a smaller query may succeed.
+     */
+    static final class QueryFailedException extends IOException {
+        QueryFailedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The amount of adiff XML the slices of one time window may hold together, in characters. The slices are
+     * kept in memory until the last one is read, so their total is limited like the size of a single download.
+     */
+    static final class Budget {
+        private final long limit;
+        private final AtomicLong used = new AtomicLong();
+
+        /**
+         * Create a new {@link Budget}
+         * @param limit The maximum number of characters
+         */
+        Budget(long limit) {
+            this.limit = limit;
+        }
+
+        private void take(long size) throws IOException {
+            if (used.addAndGet(size) > limit) {
+                throw new IOException(String.format(
+                        "Changeset is too large to load: its time slices exceed %d MB (maximum allowed: %d MB).",
+                        limit / (1024 * 1024), limit / (1024 * 1024)));
+            }
+        }
+
+        private void give(long size) {
+            used.addAndGet(-size);
+        }
+    }
+
+    /**
+     * The change of one object in one time slice
+     */
+    static final class Change {
+        private final String action;
+        private String key;
+        /** The XML of the old version, {@code null} for created objects */
+        private String oldElement;
+        /** The XML of the new version, which is a stub with {@code visible="false"} for deleted objects */
+        private String newElement;
+
+        private Change(String action) {
+            this.action = action;
+        }
+
+        /**
+         * Get the number of characters held by the change
+         */
+        long size() {
+            return key.length() + (oldElement != null ? oldElement.length() : 0)
+                    + (newElement != null ? newElement.length() : 0);
+        }
+    }
+
+    /**
+     * Read the changes of an adiff
+     * @param in The stream providing the adiff XML
+     * @param budget The budget of the time window, which the changes are taken from
+     * @return The changes, in the order of the adiff
+     * @throws QueryFailedException if the adiff reports that the query failed
+     * @throws IOException if the stream could not be read, is not an adiff or the budget is exceeded
+     */
+    static List<Change> read(InputStream in, Budget budget) throws IOException {
+        long held = 0;
+        boolean done = false;
+        try {
+            XMLEventReader reader = XmlUtils.newSafeXMLInputFactory().createXMLEventReader(in);
+            try {
+                List<Change> changes = new ArrayList<>();
+                while (reader.hasNext()) {
+                    XMLEvent event = reader.nextEvent();
+                    if (!event.isStartElement()) {
+                        continue;
+                    }
+                    String name = event.asStartElement().getName().getLocalPart();
+                    if ("action".equals(name)) {
+                        Change change = readAction(reader, event.asStartElement());
+                        if (change.key != null) {
+                            changes.add(change);
+                            held += change.size();
+                            budget.take(change.size());
+                        }
+                    } else if ("remark".equals(name)) {
+                        String remark = reader.getElementText().trim();
+                        if (remark.contains("runtime error")) {
+                            throw new QueryFailedException(remark);
+                        }
+                    }
+                }
+                done = true;
+                return changes;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            // The parser wraps errors of the underlying stream, which must not be mistaken for bad XML
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
+            throw new IOException("Invalid adiff: " + e.getMessage(), e);
+        } finally {
+            if (!done) {
+                // The changes of a failed query are dropped, its split window is read again
+                budget.give(held);
+            }
+        }
+    }
+
+    /**
+     * Join the changes of consecutive time slices. The adiff is written while it is read, and every change
+     * is dropped once it has been written.
+     * @param slices The changes of each slice, oldest slice first. The lists are emptied.
+     * @return The adiff XML for the whole time window
+     */
+    static InputStream stitch(List<List<Change>> slices) {
+        Map<String, Change> first = new LinkedHashMap<>();
+        Map<String, Change> last = new HashMap<>();
+        for (List<Change> slice : slices) {
+            for (Change change : slice) {
+                first.putIfAbsent(change.key, change);
+                last.put(change.key, change);
+            }
+            slice.clear();
+        }
+        return new StitchedInputStream(first, last);
+    }
+
+    /**
+     * Write the change of an object over the whole time window
+     * @param oldest The change in the first slice that changed the object
+     * @param newest The change in the last slice that changed the object
+     * @return The XML of the action, empty if the object was created and deleted again
+     */
+    private static String toXml(Change oldest, Change newest) {
+        boolean created = "create".equals(oldest.action);
+        boolean deleted = "delete".equals(newest.action);
+        if (created && deleted) {
+            return "";
+        }
+        StringBuilder xml = new StringBuilder();
+        if (created) {
+            xml.append("<action type=\"create\">").append(newest.newElement);
+        } else {
+            // An object deleted and created again in between is a modification
+            xml.append(deleted ? "<action type=\"delete\">" : "<action type=\"modify\">")
+                    .append("<old>").append(oldest.oldElement).append("</old>");
+            if (newest.newElement != null) {
+                xml.append("<new>").append(newest.newElement).append("</new>");
+            }
+        }
+        return xml.append("</action>\n").toString();
+    }
+
+    /**
+     * The stitched adiff, written one action at a time as it is read
+     */
+    private static final class StitchedInputStream extends InputStream {
+        private static final byte[] HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<osm version=\"0.6\">\n"
+                .getBytes(StandardCharsets.UTF_8);
+        private static final byte[] FOOTER = "</osm>\n".getBytes(StandardCharsets.UTF_8);
+
+        private final Iterator<Change> changes;
+        private final Map<String, Change> last;
+        private byte[] buffer = HEADER;
+        private int position;
+        private boolean ended;
+
+        StitchedInputStream(Map<String, Change> first, Map<String, Change> last) {
+            this.changes = first.values().iterator();
+            this.last = last;
+        }
+
+        @Override
+        public int read() {
+            return fill() ? buffer[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.length - position);
+            System.arraycopy(buffer, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        /**
+         * Write the next action once the current one has been read
+         * @return {@code false} at the end of the adiff
+         */
+        private boolean fill() {
+            while (position >= buffer.length) {
+                if (changes.hasNext()) {
+                    Change oldest = changes.next();
+                    changes.remove();
+                    buffer = toXml(oldest, last.remove(oldest.key)).getBytes(StandardCharsets.UTF_8);
+                } else if (!ended) {
+                    ended = true;
+                    buffer = FOOTER;
+                } else {
+                    return false;
+                }
+                position = 0;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Read an {@code <action>} element. The reader is positioned after its start tag and is left after its end tag.
+     */
+    private static Change readAction(XMLEventReader reader, StartElement action) throws XMLStreamException {
+        Change change = new Change(getAttribute(action, "type"));
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isEndElement()) {
+                break;
+            } else if (!event.isStartElement()) {
+                continue;
+            }
+            StartElement element = event.asStartElement();
+            String name = element.getName().getLocalPart();
+            if ("old".equals(name)) {
+                change.oldElement = readContainer(reader, change);
+            } else if ("new".equals(name)) {
+                change.newElement = readContainer(reader, change);
+            } else {
+                change.newElement = copyElement(reader, element, change);
+            }
+        }
+        if (change.action == null || (change.oldElement == null && !"create".equals(change.action))
+                || (change.newElement == null && !"delete".equals(change.action))) {
+            // Not a change that can be stitched
+            change.key = null;
+        }
+        return change;
+    }
+
+    /**
+     * Read the first element of an {@code <old>} or {@code <new>} container
+     * @return The XML of the element, or {@code null} if the container is empty
+     */
+    private static String readContainer(XMLEventReader reader, Change change) throws XMLStreamException {
+        String xml = null;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isEndElement()) {
+                break;
+            } else if (event.isStartElement()) {
+                if (xml == null) {
+                    xml = copyElement(reader, event.asStartElement(), change);
+                } else {
+                    skipElement(reader);
+                }
+            }
+        }
+        return xml;
+    }
+
+    /**
+     * Copy an element with all its children. The reader is positioned after its start tag and is left after
+     * its end tag.
+     * @return The XML of the element
+     */
+    private static String copyElement(XMLEventReader reader, StartElement start, Change change)
+            throws XMLStreamException {
+        change.key = start.getName().getLocalPart() + '/' + getAttribute(start, "id");
+        StringWriter xml = new StringWriter();
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(xml);
+        writer.add(start);
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+            writer.add(event);
+        }
+        writer.close();
+        return xml.toString();
+    }
+
+    private static void skipElement(XMLEventReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth++;
+            } else if (event.isEndElement()) {
+                depth--;
+            }
+        }
+    }
+
+    private static String getAttribute(StartElement element, String name) {
+        Attribute attribute = element.getAttributeByName(new QName(name));
+        return attribute != null ? attribute.getValue() : null;
+    }
+}
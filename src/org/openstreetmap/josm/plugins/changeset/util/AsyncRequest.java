@@ -0,0 +1,162 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.josm.tools.HttpClient;
+import org.openstreetmap.josm.tools.HttpClient.Response;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * A request running on its own thread. Cancelling the future aborts the connection of the request,
+ * so a cancelled download stops right away instead of running to its end.
+ * @param <T> The type of the result
+ * @author ruben
+ */
+final class AsyncRequest<T> extends CompletableFuture<T> {
+    /** The request running on the current thread, so {@link Request} can register its connections */
+    private static final ThreadLocal<AsyncRequest<?>> CURRENT = new ThreadLocal<>();
+
+    private Thread thread;
+    private HttpClient client;
+    private Response response;
+
+    private static final class ExecutorHolder {
+        static final ExecutorService EXECUTOR = createExecutor();
+
+        /**
+         * Use virtual threads where the Java version has them, requests mostly wait for the network
+         */
+        private static ExecutorService createExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                Logging.trace(e);
+                return Executors.newCachedThreadPool(Utils.newThreadFactory("changeset-request-%d", Thread.NORM_PRIORITY));
+            }
+        }
+    }
+
+    /**
+     * A blocking task using {@link Request}
+     * @param <T> The type of the result
+     */
+    @FunctionalInterface
+    interface Task<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Run a task on the request executor
+     * @param task The task
+     * @param <T> The type of the result
+     * @return The future of the result
+     */
+    static <T> AsyncRequest<T> submit(Task<T> task) {
+        return submit(task, ExecutorHolder.EXECUTOR);
+    }
+
+    /**
+     * Run a task on an executor of its own, e.g. to limit the number of tasks running at the same time
+     * @param task The task
+     * @param executor The executor
+     * @param <T> The type of the result
+     * @return The future of the result
+     */
+    static <T> AsyncRequest<T> submit(Task<T> task, Executor executor) {
+        AsyncRequest<T> request = new AsyncRequest<>();
+        executor.execute(() -> request.run(task));
+        return request;
+    }
+
+    /**
+     * Tell the request running on the current thread about a client that is about to connect
+     * @param client The client
+     * @throws InterruptedIOException if the request was cancelled
+     */
+    static void connecting(HttpClient client) throws InterruptedIOException {
+        AsyncRequest<?> request = CURRENT.get();
+        if (request != null) {
+            request.setClient(client);
+        }
+    }
+
+    /**
+     * Tell the request running on the current thread about a response that is about to be read
+     * @param response The response
+     */
+    static void connected(Response response) {
+        AsyncRequest<?> request = CURRENT.get();
+        if (request != null) {
+            request.setResponse(response);
+        }
+    }
+
+    private void run(Task<T> task) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            thread = Thread.currentThread();
+        }
+        CURRENT.set(this);
+        try {
+            complete(task.call());
+        } catch (IOException | RuntimeException e) {
+            completeExceptionally(e);
+        } finally {
+            CURRENT.remove();
+            synchronized (this) {
+                thread = null;
+                client = null;
+                response = null;
+            }
+            // Do not leave an interrupt of a cancelled request to the next task of the thread
+            Thread.interrupted();
+        }
+    }
+
+    private synchronized void setClient(HttpClient client) throws InterruptedIOException {
+        if (isCancelled()) {
+            throw new InterruptedIOException("Request cancelled");
+        }
+        this.client = client;
+        this.response = null;
+    }
+
+    private synchronized void setResponse(Response response) {
+        this.response = response;
+        if (isCancelled()) {
+            response.disconnect();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if (cancelled) {
+            abort();
+        }
+        return cancelled;
+    }
+
+    /**
+     * Close the connection of the running request, which makes a blocked read fail
+     */
+    private synchronized void abort() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (response != null) {
+            response.disconnect();
+        } else if (client != null) {
+            client.disconnect();
+        }
+    }
+}
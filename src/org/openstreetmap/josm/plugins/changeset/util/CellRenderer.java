@@ -1,11 +1,14 @@
 // License: MIT. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.changeset.util;
 
+import static org.openstreetmap.josm.tools.I18n.tr;
+
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
 import java.awt.Font;
 import java.awt.GridLayout;
+import java.awt.Rectangle;
 import javax.swing.BorderFactory;
 import javax.swing.JLabel;
 import javax.swing.JList;
@@ -14,7 +17,10 @@ import javax.swing.ListCellRenderer;
 import javax.swing.SwingConstants;
 
 /**
- * The cell renderer for {@link ChangesetBeen}
+ * The cell renderer for {@link ChangesetBeen}.
+ * <p>
+ * Swing calls the renderer for every visible row on every repaint, so one row component is reused for all rows
+ * and the texts of a changeset are only formatted the first time it is shown.
  * @author ruben
  */
 public class CellRenderer implements ListCellRenderer<ChangesetBeen> {
@@ -27,64 +33,102 @@ public class CellRenderer implements ListCellRenderer<ChangesetBeen> {
     private static final Font FONT_BOLD = new Font("SansSerif", Font.BOLD, 11);
     private static final Font FONT_NORMAL = new Font("SansSerif", Font.PLAIN, 11);
 
+    private final JPanel row = new JPanel(new BorderLayout(4, 0));
+    private final JPanel leftPanel = new JPanel(new BorderLayout(4, 0));
+    private final JPanel statsPanel = new JPanel(new GridLayout(1, 3, 8, 0));
+    private final JLabel idLabel = new RowLabel(SwingConstants.LEADING, FONT_BOLD, null);
+    private final JLabel userLabel = new RowLabel(SwingConstants.LEADING, FONT_NORMAL, null);
+    private final JLabel dateLabel = new RowLabel(SwingConstants.CENTER, FONT_NORMAL, COLOR_DATE);
+    private final JLabel createLabel = new RowLabel(SwingConstants.CENTER, FONT_BOLD, COLOR_CREATE);
+    private final JLabel modifyLabel = new RowLabel(SwingConstants.CENTER, FONT_BOLD, COLOR_MODIFY);
+    private final JLabel deleteLabel = new RowLabel(SwingConstants.CENTER, FONT_BOLD, COLOR_DELETE);
+
+    /**
+     * The texts of a row, formatted once per changeset
+     */
+    static final class RowTexts {
+        final String id;
+        final String date;
+        final String create;
+        final String modify;
+        final String delete;
+
+        RowTexts(ChangesetBeen changesetBeen) {
+            this.id = "#" + changesetBeen.getChangesetId() + "  ";
+            this.date = formatDate(changesetBeen.getDate());
+            this.create = String.valueOf(changesetBeen.getCreate());
+            this.modify = String.valueOf(changesetBeen.getModify());
+            this.delete = String.valueOf(changesetBeen.getDelete());
+        }
+    }
+
+    /**
+     * Create a new {@link CellRenderer}
+     */
+    public CellRenderer() {
+        row.setBorder(BorderFactory.createEmptyBorder(3, 6, 3, 6));
+        row.setOpaque(true);
+
+        // Left: ID + user
+        leftPanel.setOpaque(false);
+        leftPanel.add(idLabel, BorderLayout.WEST);
+        leftPanel.add(userLabel, BorderLayout.CENTER);
+
+        // Right: C / M / D stats
+        statsPanel.setOpaque(false);
+        statsPanel.add(createLabel);
+        statsPanel.add(modifyLabel);
+        statsPanel.add(deleteLabel);
+
+        row.add(leftPanel, BorderLayout.WEST);
+        row.add(dateLabel, BorderLayout.CENTER);
+        row.add(statsPanel, BorderLayout.EAST);
+    }
+
+    /**
+     * Get a changeset with wide values, to give a list fixed row sizes without rendering every row
+     * @return The value for {@link JList#setPrototypeCellValue}
+     */
+    public static ChangesetBeen createPrototypeValue() {
+        ChangesetBeen prototype = new ChangesetBeen();
+        prototype.setChangesetId(999_999_999);
+        prototype.setUser("WWWWWWWWWWWWWWWW");
+        prototype.setDate("2000-00-00T00:00:00Z");
+        prototype.setCreate(99_999);
+        prototype.setModify(99_999);
+        prototype.setDelete(99_999);
+        return prototype;
+    }
+
     @Override
     public Component getListCellRendererComponent(JList<? extends ChangesetBeen> list, ChangesetBeen changesetBeen, int index,
                                                   boolean isSelected, boolean cellHasFocus) {
-        JPanel row = new JPanel(new BorderLayout(4, 0));
-        row.setBorder(BorderFactory.createEmptyBorder(3, 6, 3, 6));
-
         if (changesetBeen != null) {
-            // Left: ID + user
-            JLabel idLabel = new JLabel("#" + changesetBeen.getChangesetId() + "  ");
-            idLabel.setFont(FONT_BOLD);
-
-            JLabel userLabel = new JLabel(changesetBeen.getUser());
-            userLabel.setFont(FONT_NORMAL);
-
-            JPanel leftPanel = new JPanel(new BorderLayout(4, 0));
-            leftPanel.setOpaque(false);
-            leftPanel.add(idLabel, BorderLayout.WEST);
-            leftPanel.add(userLabel, BorderLayout.CENTER);
-
-            // Center: date
-            String dateStr = formatDate(changesetBeen.getDate());
-            JLabel dateLabel = new JLabel(dateStr, SwingConstants.CENTER);
-            dateLabel.setForeground(COLOR_DATE);
-            dateLabel.setFont(FONT_NORMAL);
-
-            // Right: C / M / D stats
-            JPanel statsPanel = new JPanel(new GridLayout(1, 3, 8, 0));
-            statsPanel.setOpaque(false);
-
-            JLabel createLabel = new JLabel(String.valueOf(changesetBeen.getCreate()), SwingConstants.CENTER);
-            createLabel.setForeground(COLOR_CREATE);
-            createLabel.setFont(FONT_BOLD);
-
-            JLabel modifyLabel = new JLabel(String.valueOf(changesetBeen.getModify()), SwingConstants.CENTER);
-            modifyLabel.setForeground(COLOR_MODIFY);
-            modifyLabel.setFont(FONT_BOLD);
-
-            JLabel deleteLabel = new JLabel(String.valueOf(changesetBeen.getDelete()), SwingConstants.CENTER);
-            deleteLabel.setForeground(COLOR_DELETE);
-            deleteLabel.setFont(FONT_BOLD);
-
-            statsPanel.add(createLabel);
-            statsPanel.add(modifyLabel);
-            statsPanel.add(deleteLabel);
-
-            row.add(leftPanel, BorderLayout.WEST);
-            row.add(dateLabel, BorderLayout.CENTER);
-            row.add(statsPanel, BorderLayout.EAST);
-        }
-
-        if (isSelected) {
-            row.setBackground(COLOR_SELECTED_BG);
-            row.setOpaque(true);
+            RowTexts texts = changesetBeen.rowTexts;
+            if (texts == null) {
+                texts = new RowTexts(changesetBeen);
+                changesetBeen.rowTexts = texts;
+            }
+            idLabel.setText(texts.id);
+            userLabel.setText(changesetBeen.getUser());
+            dateLabel.setText(texts.date);
+            createLabel.setText(texts.create);
+            modifyLabel.setText(texts.modify);
+            deleteLabel.setText(texts.delete);
         } else {
-            row.setOpaque(true);
-            row.setBackground(list.getBackground());
+            // A row that is still being fetched
+            idLabel.setText("");
+            userLabel.setText(tr("Loading..."));
+            dateLabel.setText("");
+            createLabel.setText("");
+            modifyLabel.setText("");
+            deleteLabel.setText("");
         }
+        // The labels do not invalidate themselves, see RowLabel
+        leftPanel.invalidate();
+        statsPanel.invalidate();
 
+        row.setBackground(isSelected ? COLOR_SELECTED_BG : list.getBackground());
         return row;
     }
 
@@ -93,6 +137,52 @@ public class CellRenderer implements ListCellRenderer<ChangesetBeen> {
             return "";
         }
         // "2023-04-21T10:52:43Z" -> "2023-04-21 10:52"
-        return date.replace("T", " ").replaceAll(":\\d{2}Z$", "").replaceAll(":\\d{2}$", "");
+        String formatted = date.replace('T', ' ');
+        if (formatted.length() > 16 && formatted.charAt(13) == ':' && formatted.charAt(16) == ':') {
+            return formatted.substring(0, 16);
+        }
+        return formatted.endsWith("Z") ? formatted.substring(0, formatted.length() - 1) : formatted;
+    }
+
+    /**
+     * A label that skips the repaint and revalidate requests of a text change, like {@code DefaultListCellRenderer}.
+     * The row is only painted by the list, which lays it out first.
+     */
+    private static final class RowLabel extends JLabel {
+        RowLabel(int alignment, Font font, Color foreground) {
+            super("", alignment);
+            setFont(font);
+            if (foreground != null) {
+                setForeground(foreground);
+            }
+        }
+
+        @Override
+        public void revalidate() {
+            // Not needed for rendering
+        }
+
+        @Override
+        public void repaint(long tm, int x, int y, int width, int height) {
+            // Not needed for rendering
+        }
+
+        @Override
+        public void repaint(Rectangle r) {
+            // Not needed for rendering
+        }
+
+        @Override
+        public void repaint() {
+            // Not needed for rendering
+        }
+
+        @Override
+        protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {
+            // Only HTML text needs the property change, to update its view
+            if ("text".equals(propertyName)) {
+                super.firePropertyChange(propertyName, oldValue, newValue);
+            }
+        }
     }
 }
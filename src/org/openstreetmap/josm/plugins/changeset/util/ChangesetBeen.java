@@ -13,6 +13,8 @@ public class ChangesetBeen {
     int delete;
     int create;
     int modify;
+    /** The texts shown by {@link CellRenderer}, formatted on first use */
+    CellRenderer.RowTexts rowTexts;
 
     public String getUser() {
         return user;
@@ -20,6 +22,7 @@ public class ChangesetBeen {
 
     public void setUser(String user) {
         this.user = user;
+        this.rowTexts = null;
     }
 
     public int getChangesetId() {
@@ -28,6 +31,7 @@ public class ChangesetBeen {
 
     public void setChangesetId(int changesetId) {
         this.changesetId = changesetId;
+        this.rowTexts = null;
     }
 
     public int getDelete() {
@@ -36,6 +40,7 @@ public class ChangesetBeen {
 
     public void setDelete(int delete) {
         this.delete = delete;
+        this.rowTexts = null;
     }
 
     public int getCreate() {
@@ -44,6 +49,7 @@ public class ChangesetBeen {
 
     public void setCreate(int create) {
         this.create = create;
+        this.rowTexts = null;
     }
 
     public int getModify() {
@@ -52,6 +58,7 @@ public class ChangesetBeen {
 
     public void setModify(int modify) {
         this.modify = modify;
+        this.rowTexts = null;
     }
 
     public String getDate() {
@@ -60,6 +67,7 @@ public class ChangesetBeen {
 
     public void setDate(String date) {
         this.date = date;
+        this.rowTexts = null;
     }
 
 }
@@ -0,0 +1,98 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BoundedChangesetDataSet;
+
+/**
+ * A memory cache of recently shown changesets, so switching between changesets does not build them again.
+ * <p>
+ * Every changeset is weighed by {@link BoundedChangesetDataSet#getSize()}. Once the total weight exceeds
+ * the budget, the least recently used changesets are dropped. The changesets are only softly referenced,
+ * so the garbage collector may drop them earlier when memory gets low.
+ * @author ruben
+ */
+public final class ChangesetCache {
+    /** Cached changesets by platform and changeset id, in access order */
+    private static final Map<String, Entry> CACHE = new LinkedHashMap<>(16, 0.75f, true);
+    private static long weight;
+
+    private ChangesetCache() {
+        // Hide constructor
+    }
+
+    private static final class Entry {
+        final SoftReference<BoundedChangesetDataSet> data;
+        final int weight;
+
+        Entry(BoundedChangesetDataSet data) {
+            this.data = new SoftReference<>(data);
+            this.weight = Math.max(1, data.getSize());
+        }
+    }
+
+    /**
+     * Get a changeset of the current platform
+     * @param changesetId The changeset id
+     * @return The changeset, or {@code null} if it is not cached
+     */
+    public static synchronized BoundedChangesetDataSet get(String changesetId) {
+        String key = getKey(changesetId);
+        Entry entry = CACHE.get(key);
+        if (entry == null) {
+            return null;
+        }
+        BoundedChangesetDataSet data = entry.data.get();
+        if (data == null) {
+            // Collected under memory pressure
+            remove(key);
+        }
+        return data;
+    }
+
+    /**
+     * Add a changeset of the current platform
+     * @param changesetId The changeset id
+     * @param data The changeset
+     */
+    public static synchronized void put(String changesetId, BoundedChangesetDataSet data) {
+        long budget = Config.getMemoryCacheSize();
+        Entry entry = new Entry(data);
+        String key = getKey(changesetId);
+        remove(key);
+        if (entry.weight > budget) {
+            return;
+        }
+        CACHE.put(key, entry);
+        weight += entry.weight;
+        Iterator<Entry> iterator = CACHE.values().iterator();
+        while (weight > budget && iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.weight;
+        }
+    }
+
+    /**
+     * Remove all changesets
+     */
+    public static synchronized void clear() {
+        CACHE.clear();
+        weight = 0;
+    }
+
+    private static void remove(String key) {
+        Entry entry = CACHE.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    private static String getKey(String changesetId) {
+        return Config.getPlatform().name() + '/' + changesetId;
+    }
+}
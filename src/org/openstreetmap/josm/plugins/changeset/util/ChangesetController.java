@@ -2,29 +2,49 @@
 package org.openstreetmap.josm.plugins.changeset.util;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.StringReader;
+import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jakarta.json.Json;
-import jakarta.json.JsonArray;
-import jakarta.json.JsonObject;
-import jakarta.json.JsonReader;
-import jakarta.json.JsonValue;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BoundedChangesetDataSet;
 import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+import org.openstreetmap.josm.tools.XmlUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
@@ -36,35 +56,310 @@ import org.xml.sax.InputSource;
  */
 public final class ChangesetController {
     public static final int PAGE_SIZE = 20;
+    /** Timeout of an Overpass query, in seconds */
+    private static final int OVERPASS_TIMEOUT = 120;
+    /** Maximum number of tiles a huge changeset bbox is split into for Overpass */
+    private static final int MAX_OVERPASS_TILES = 32;
+    /** Maximum number of time slices a long changeset is split into for Overpass */
+    private static final int MAX_OVERPASS_SLICES = 16;
+    /** Minimum length of a time slice, in seconds */
+    private static final long MIN_OVERPASS_SLICE = 60;
+    /** The status of an Overpass query that ran out of time on the server */
+    private static final int HTTP_GATEWAY_TIMEOUT = 504;
+    /** Maximum number of changesets the OSM API returns for one changesets query */
+    private static final int STATS_BATCH_SIZE = 100;
+
+    /** Changeset loads in progress, by platform and changeset id */
+    private static final SingleFlight<BoundedChangesetDataSet> CHANGESET_FLIGHTS =
+            new SingleFlight<>(BoundedChangesetDataSet::isComplete);
+    /** Downloads from the adiffs host in progress, shared by loads and prefetches, by platform and changeset id */
+    private static final SingleFlight<BoundedChangesetDataSet> ADIFF_FLIGHTS =
+            new SingleFlight<>(BoundedChangesetDataSet::isComplete);
+    /** OSMCha page requests in progress, by URL */
+    private static final SingleFlight<OsmchaResult> OSMCHA_FLIGHTS = new SingleFlight<>();
 
     private ChangesetController() {
         // Hide the constructor
     }
 
     /**
-     * Get a changeset, trying adiffs.osmcha.org first, then Overpass API as fallback
+     * Get a changeset, trying adiffs.osmcha.org first, then Overpass API as fallback.
+     * The adiff is parsed while it is downloaded.
      * @param changesetId The changeset to get
      * @return The dataset to show
      */
     public static BoundedChangesetDataSet getChangeset(String changesetId) throws IOException {
+        return getChangeset(changesetId, null);
+    }
+
+    /**
+     * Get a changeset, trying adiffs.osmcha.org first, then Overpass API as fallback.
+     * The adiff is parsed while it is downloaded, and the listener is told about every batch of primitives.
+     * Recently shown changesets are taken from memory, without calling the listener. A changeset that is
+     * already loading is not loaded again, the caller waits for it and only the first caller gets the listener calls.
+     * @param changesetId The changeset to get
+     * @param listener The listener showing the changeset while it loads, or {@code null}
+     * @return The dataset to show
+     */
+    public static BoundedChangesetDataSet getChangeset(String changesetId, DataSetChangesetBuilder.BuildListener listener)
+            throws IOException {
+        BoundedChangesetDataSet cached = ChangesetCache.get(changesetId);
+        if (cached != null) {
+            return cached;
+        }
+        return CHANGESET_FLIGHTS.run(getFlightKey(changesetId), () -> {
+            BoundedChangesetDataSet data = loadChangeset(changesetId, listener);
+            if (data != null && data.isComplete()) {
+                ChangesetCache.put(changesetId, data);
+            }
+            return data;
+        });
+    }
+
+    /**
+     * Load a changeset into the memory cache ahead of time. Only the disk cache and the adiffs host are asked,
+     * the Overpass API is left for the changesets the user wants to see.
+     * @param changesetId The changeset to load
+     * @return {@code true} if the changeset is in the memory cache now
+     * @throws IOException if the adiffs host could not be asked
+     */
+    public static boolean prefetchChangeset(String changesetId) throws IOException {
+        if (ChangesetCache.get(changesetId) != null) {
+            return true;
+        }
+        BoundedChangesetDataSet data = getCachedChangeset(changesetId, createPrefetchBuilder(changesetId));
+        if (data == null && !Config.getAdiffsHost().isEmpty()) {
+            data = ADIFF_FLIGHTS.run(getFlightKey(changesetId),
+                    () -> downloadAdiff(changesetId, createPrefetchBuilder(changesetId), () -> { }));
+        }
+        if (data == null || !data.isComplete()) {
+            return false;
+        }
+        ChangesetCache.put(changesetId, data);
+        return true;
+    }
+
+    private static String getFlightKey(String changesetId) {
+        return Config.getPlatform().name() + '/' + changesetId;
+    }
+
+    private static BoundedChangesetDataSet loadChangeset(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener) throws IOException {
+        BoundedChangesetDataSet cached = getCachedChangeset(changesetId, createBuilder(changesetId, listener));
+        if (cached != null) {
+            return cached;
+        }
+        // Try adiffs host first (only available for OSM)
+        if (Config.getAdiffsHost().isEmpty()) {
+            return getAdiffFromOverpass(changesetId, listener);
+        }
+        // A prefetch downloading the changeset already asked the adiffs host, there is nothing to hedge
+        if (Config.getHedgeDelay() < 0 || ADIFF_FLIGHTS.isRunning(getFlightKey(changesetId))) {
+            return getAdiffOrFallback(changesetId, listener, () -> getAdiffFromAdiffsHost(changesetId, listener));
+        }
+        return getHedgedAdiff(changesetId, listener);
+    }
+
+    private static DataSetChangesetBuilder createBuilder(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener) {
         DataSetChangesetBuilder builder = new DataSetChangesetBuilder();
+        // Overpass returns all changes in the area and time window of the changeset
+        builder.setChangesetId(changesetId);
+        builder.setParallel(Config.isParallelBuild());
+        builder.setCompact(Config.isCompactGeometry());
+        builder.setBuildListener(listener);
+        return builder;
+    }
+
+    /**
+     * Create a builder for a prefetch. It builds on the low priority prefetch thread only, the parallel build
+     * pool is left to the changesets the user wants to see.
+     */
+    private static DataSetChangesetBuilder createPrefetchBuilder(String changesetId) {
+        DataSetChangesetBuilder builder = createBuilder(changesetId, null);
+        builder.setParallel(false);
+        return builder;
+    }
+
+    /**
+     * Get the adiff from the adiffs host, trying every configured file extension. A download that is already
+     * running for the changeset is waited for instead of starting another one.
+     * @return The dataset to show, or {@code null} if the adiffs host does not have the changeset
+     */
+    private static BoundedChangesetDataSet getAdiffFromAdiffsHost(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener) throws IOException {
+        return getAdiffFromAdiffsHost(changesetId, listener, () -> { });
+    }
+
+    /**
+     * Get the adiff from the adiffs host
+     * @param answered Called as soon as the adiffs host answered a request, before the adiff is downloaded
+     * @return The dataset to show, or {@code null} if the adiffs host does not have the changeset
+     */
+    private static BoundedChangesetDataSet getAdiffFromAdiffsHost(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener, Runnable answered) throws IOException {
+        return ADIFF_FLIGHTS.run(getFlightKey(changesetId), () -> downloadAdiff(changesetId, createBuilder(changesetId, listener), answered));
+    }
+
+    private static BoundedChangesetDataSet downloadAdiff(String changesetId, DataSetChangesetBuilder builder,
+            Runnable answered) throws IOException {
+        for (String extension : Config.getAdiffExtensions()) {
+            String url = Config.getAdiffsHost() + changesetId + extension;
+            BoundedChangesetDataSet data = Request.sendGET(url, content -> {
+                answered.run();
+                return AdiffCache.store(changesetId, content, builder::build, BoundedChangesetDataSet::isComplete);
+            });
+            if (data != null) {
+                return data;
+            }
+            // Not found
+            answered.run();
+        }
+        return null;
+    }
+
+    /**
+     * Get the adiff from the adiffs host, and from Overpass API as well if the adiffs host did not answer within
+     * the hedge delay. Once the adiffs host answered, Overpass API is only asked if it does not have the changeset.
+     * When both are asked, the first changeset found wins and the other request is cancelled.
+     * The listener follows the first request that delivers data, until that request fails.
+     */
+    private static BoundedChangesetDataSet getHedgedAdiff(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener) throws IOException {
+        AtomicReference<Object> listenerOwner = new AtomicReference<>();
+        CompletableFuture<Void> answered = new CompletableFuture<>();
+        List<CompletableFuture<BoundedChangesetDataSet>> attempts = new ArrayList<>(2);
         try {
-            // Try adiffs host first (only available for OSM)
-            String adiffsHost = Config.getAdiffsHost();
-            if (!adiffsHost.isEmpty()) {
-                String url = adiffsHost + changesetId + ".adiff";
-                String adiff = Request.sendGET(url);
-                if (adiff != null) {
-                    return builder.build(adiff);
+            CompletableFuture<BoundedChangesetDataSet> adiffsHost = AsyncRequest.submit(hedgedAttempt(listener,
+                    listenerOwner, hedgedListener -> getAdiffFromAdiffsHost(changesetId, hedgedListener,
+                            () -> answered.complete(null))));
+            attempts.add(adiffsHost);
+            if (awaitAny(Arrays.asList(answered, adiffsHost), Config.getHedgeDelay())) {
+                return getAdiffOrFallback(changesetId, listener, () -> awaitQuery(adiffsHost));
+            }
+            Logging.info("Changeset " + changesetId + " not yet answered by adiffs host, trying Overpass API as well...");
+            attempts.add(AsyncRequest.submit(hedgedAttempt(listener, listenerOwner,
+                    hedgedListener -> getAdiffFromOverpass(changesetId, hedgedListener))));
+            IOException failure = null;
+            while (!attempts.isEmpty()) {
+                awaitAny(attempts, -1);
+                for (Iterator<CompletableFuture<BoundedChangesetDataSet>> it = attempts.iterator(); it.hasNext();) {
+                    CompletableFuture<BoundedChangesetDataSet> attempt = it.next();
+                    if (!attempt.isDone()) {
+                        continue;
+                    }
+                    it.remove();
+                    try {
+                        BoundedChangesetDataSet data = awaitQuery(attempt);
+                        if (data != null) {
+                            return data;
+                        }
+                    } catch (IOException e) {
+                        Logging.warn("Could not get changeset " + changesetId + ": " + e.getMessage());
+                        failure = e;
+                    }
                 }
             }
-            // Fallback: get changeset metadata from API, then query Overpass
-            Logging.info("Changeset " + changesetId + " not found on adiffs host, trying Overpass API...");
-            String adiffOverpass = getAdiffFromOverpass(changesetId);
-            if (adiffOverpass != null) {
-                return builder.build(adiffOverpass);
+            if (failure != null) {
+                throw failure;
             }
             return null;
+        } finally {
+            // Closes the connection of the request that lost
+            attempts.forEach(attempt -> attempt.cancel(true));
+        }
+    }
+
+    /**
+     * Get the adiff from the adiffs host, and from Overpass API if the adiffs host does not have the changeset
+     * or failed, e.g. because it is busy
+     */
+    private static BoundedChangesetDataSet getAdiffOrFallback(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener, AsyncRequest.Task<BoundedChangesetDataSet> adiffsHost)
+            throws IOException {
+        try {
+            BoundedChangesetDataSet data = adiffsHost.call();
+            if (data != null) {
+                return data;
+            }
+            Logging.info("Changeset " + changesetId + " not found on adiffs host, trying Overpass API...");
+        } catch (IOException e) {
+            // A cancelled load ends here, a timeout is a failure of the adiffs host
+            if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+                throw e;
+            }
+            Logging.warn("Could not get changeset " + changesetId + " from adiffs host (" + e.getMessage()
+                    + "), trying Overpass API...");
+        }
+        return getAdiffFromOverpass(changesetId, listener);
+    }
+
+    /**
+     * Wait until one of the futures is done
+     * @param timeout The maximum time to wait in milliseconds, or a negative value to wait without limit
+     * @return {@code false} if the time ran out
+     */
+    private static boolean awaitAny(List<? extends CompletableFuture<?>> futures, long timeout) throws IOException {
+        CompletableFuture<Object> any = CompletableFuture.anyOf(futures.toArray(new CompletableFuture<?>[0]));
+        try {
+            if (timeout < 0) {
+                any.get();
+            } else {
+                any.get(timeout, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading changeset");
+        } catch (ExecutionException e) {
+            // The failure is read from the future itself
+            Logging.trace(e);
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * A request for an adiff, building with the given listener
+     */
+    @FunctionalInterface
+    private interface AdiffRequest {
+        BoundedChangesetDataSet get(DataSetChangesetBuilder.BuildListener listener) throws IOException;
+    }
+
+    /**
+     * Wrap a request of a hedged load, so only one request at a time feeds the listener
+     */
+    private static AsyncRequest.Task<BoundedChangesetDataSet> hedgedAttempt(DataSetChangesetBuilder.BuildListener listener,
+            AtomicReference<Object> listenerOwner, AdiffRequest request) {
+        Object token = new Object();
+        DataSetChangesetBuilder.BuildListener hedgedListener = listener == null ? null : data -> {
+            if (listenerOwner.compareAndSet(null, token) || listenerOwner.get() == token) {
+                listener.dataSetGrown(data);
+            }
+        };
+        return () -> {
+            boolean found = false;
+            try {
+                BoundedChangesetDataSet data = request.get(hedgedListener);
+                found = data != null;
+                return data;
+            } finally {
+                if (!found) {
+                    // Let the other request show its data
+                    listenerOwner.compareAndSet(token, null);
+                }
+            }
+        };
+    }
+
+    /**
+     * Get augmented diff from Overpass API using changeset metadata
+     */
+    private static BoundedChangesetDataSet getAdiffFromOverpass(String changesetId,
+            DataSetChangesetBuilder.BuildListener listener) throws IOException {
+        try {
+            return getAdiffFromOverpass(changesetId, createBuilder(changesetId, listener));
         } catch (IOException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -73,10 +368,8 @@ public final class ChangesetController {
         }
     }
 
-    /**
-     * Get augmented diff from Overpass API using changeset metadata
-     */
-    private static String getAdiffFromOverpass(String changesetId) throws Exception {
+    private static BoundedChangesetDataSet getAdiffFromOverpass(String changesetId, DataSetChangesetBuilder builder)
+            throws Exception {
         String csUrl = Config.getApiUrl() + "changeset/" + changesetId;
         String csXml = Request.sendGET(csUrl);
         if (csXml == null) {
@@ -106,21 +399,259 @@ public final class ChangesetController {
 
         String bboxFilter = "";
         if (!minLat.isEmpty() && !minLon.isEmpty() && !maxLat.isEmpty() && !maxLon.isEmpty()) {
+            List<String> tiles = getOverpassTiles(Double.parseDouble(minLat), Double.parseDouble(minLon),
+                    Double.parseDouble(maxLat), Double.parseDouble(maxLon));
+            if (tiles.size() > 1) {
+                return getTiledAdiffFromOverpass(changesetId, builder, beforeTime, afterTime, tiles);
+            }
             bboxFilter = "[bbox:" + minLat + "," + minLon + "," + maxLat + "," + maxLon + "]";
         }
 
+        Logging.info("Querying Overpass API for changeset " + changesetId + " from " + beforeTime + " to " + afterTime
+                + " in " + (bboxFilter.isEmpty() ? "the whole world" : bboxFilter));
+        // Not stored in the adiff cache, Overpass may not have all changes of a recently closed changeset yet
+        return queryOverpass(beforeTime, afterTime, bboxFilter, new Semaphore(Config.getOverpassParallelQueries()),
+                builder::build);
+    }
+
+    /**
+     * Query the adiff of an area. A long time window is split into slices that are queried in parallel,
+     * and a window or slice the server fails to answer in time is split again.
+     * @param slots The permits for queries that may run at the same time
+     * @param handler The handler consuming the adiff. It must fail with a {@link AdiffStitcher.QueryFailedException}
+     * if the adiff reports that the query failed, and may be called again with the adiff of the split window.
+     * @return The result of the handler, or {@code null} if a query did not succeed
+     */
+    private static <T> T queryOverpass(String beforeTime, String afterTime, String bboxFilter, Semaphore slots,
+            Request.ContentHandler<T> handler) throws IOException {
+        Instant start = Instant.parse(beforeTime);
+        Instant end = Instant.parse(afterTime);
+        long window = Duration.between(start, end).getSeconds();
+        long sliceDuration = Config.getOverpassSliceDuration();
+        List<Instant> bounds;
+        if (sliceDuration <= 0 || window <= sliceDuration) {
+            try {
+                // Short windows are streamed into the handler while they are downloaded
+                return postOverpass(createOverpassQuery(beforeTime, afterTime, bboxFilter), slots, handler);
+            } catch (IOException e) {
+                bounds = splitFailedQuery(start, end, e);
+            }
+        } else {
+            int count = (int) Math.min(MAX_OVERPASS_SLICES, (window + sliceDuration - 1) / sliceDuration);
+            bounds = new ArrayList<>(count + 1);
+            for (int i = 0; i < count; i++) {
+                bounds.add(start.plusSeconds(window * i / count));
+            }
+            bounds.add(end);
+        }
+        AdiffStitcher.Budget budget = new AdiffStitcher.Budget(Config.getMaxDownloadSize());
+        List<List<AdiffStitcher.Change>> slices = querySlices(bounds, bboxFilter, slots, budget);
+        if (slices == null) {
+            return null;
+        }
+        try (InputStream stitched = AdiffStitcher.stitch(slices)) {
+            return handler.handle(stitched);
+        }
+    }
+
+    /**
+     * Split the time window of a query the server failed to answer in time
+     * @param failure The failure of the query
+     * @return The start of both halves, followed by the end of the window
+     * @throws IOException the failure, if a smaller query would not help
+     */
+    private static List<Instant> splitFailedQuery(Instant start, Instant end, IOException failure) throws IOException {
+        long seconds = Duration.between(start, end).getSeconds();
+        boolean timedOut = failure instanceof AdiffStitcher.QueryFailedException
+                || failure instanceof SocketTimeoutException
+                || (failure instanceof Request.BusyException
+                        && ((Request.BusyException) failure).getResponseCode() == HTTP_GATEWAY_TIMEOUT);
+        if (!timedOut || seconds < 2 * MIN_OVERPASS_SLICE) {
+            throw failure;
+        }
+        Instant middle = start.plusSeconds(seconds / 2);
+        Logging.info("Overpass query from " + start + " to " + end + " failed (" + failure.getMessage()
+                + "), splitting it at " + middle);
+        return Arrays.asList(start, middle, end);
+    }
+
+    /**
+     * Query the changes of consecutive time slices in parallel
+     * @param bounds The start of every slice, followed by the end of the last one
+     * @param budget The budget the changes of all slices are taken from
+     * @return The changes of every slice, oldest first, or {@code null} if a query did not succeed
+     */
+    private static List<List<AdiffStitcher.Change>> querySlices(List<Instant> bounds, String bboxFilter,
+            Semaphore slots, AdiffStitcher.Budget budget) throws IOException {
+        List<CompletableFuture<List<List<AdiffStitcher.Change>>>> queries = new ArrayList<>(bounds.size() - 1);
+        boolean complete = false;
+        try {
+            for (int i = 0; i + 1 < bounds.size(); i++) {
+                Instant start = bounds.get(i);
+                Instant end = bounds.get(i + 1);
+                queries.add(AsyncRequest.submit(() -> querySlice(start, end, bboxFilter, slots, budget)));
+            }
+            List<List<AdiffStitcher.Change>> slices = new ArrayList<>();
+            for (CompletableFuture<List<List<AdiffStitcher.Change>>> query : queries) {
+                List<List<AdiffStitcher.Change>> result = awaitQuery(query);
+                if (result == null) {
+                    return null;
+                }
+                slices.addAll(result);
+            }
+            complete = true;
+            return slices;
+        } finally {
+            if (!complete) {
+                queries.forEach(query -> query.cancel(true));
+            }
+        }
+    }
+
+    private static List<List<AdiffStitcher.Change>> querySlice(Instant start, Instant end, String bboxFilter,
+            Semaphore slots, AdiffStitcher.Budget budget) throws IOException {
+        try {
+            List<AdiffStitcher.Change> changes = postOverpass(createOverpassQuery(start.toString(), end.toString(),
+                    bboxFilter), slots, content -> AdiffStitcher.read(content, budget));
+            return changes != null ? Collections.singletonList(changes) : null;
+        } catch (IOException e) {
+            return querySlices(splitFailedQuery(start, end, e), bboxFilter, slots, budget);
+        }
+    }
+
+    /**
+     * Send a query to the Overpass API once one of the slots is free
+     */
+    private static <T> T postOverpass(String query, Semaphore slots, Request.ContentHandler<T> handler)
+            throws IOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an Overpass slot");
+        }
+        try {
+            Logging.debug("Overpass query: {0}", query);
+            return Request.sendPOST(Config.getOverpassUrl(), "data=" + URLEncoder.encode(query, "UTF-8"),
+                    OVERPASS_TIMEOUT + 10, handler);
+        } finally {
+            slots.release();
+        }
+    }
+
+    private static String createOverpassQuery(String beforeTime, String afterTime, String bboxFilter) {
         // Query all elements in bbox; [adiff] mode only outputs elements that
         // changed between the two timestamps (create/modify/delete).
-        int timeoutSec = 120;
-        String query = "[adiff:\"" + beforeTime + "\",\"" + afterTime + "\"]"
-                + "[timeout:" + timeoutSec + "]" + bboxFilter + ";"
+        return "[adiff:\"" + beforeTime + "\",\"" + afterTime + "\"]"
+                + "[timeout:" + OVERPASS_TIMEOUT + "]" + bboxFilter + ";"
                 + "node;out meta;"
                 + "way;out meta geom;"
                 + "relation;out meta geom;";
+    }
 
-        Logging.info("Overpass query for changeset " + changesetId + ": " + query);
-        return Request.sendPOST(Config.getOverpassUrl(),
-                "data=" + java.net.URLEncoder.encode(query, "UTF-8"), timeoutSec + 10);
+    /**
+     * Split the bbox of a changeset into a grid of bbox filters, so a huge bbox does not make the Overpass
+     * query time out
+     * @return The bbox filters, a single one if the bbox is small enough
+     */
+    private static List<String> getOverpassTiles(double minLat, double minLon, double maxLat, double maxLon) {
+        double tileSize = Config.getOverpassTileSize();
+        int rows = (int) Math.max(1, Math.ceil((maxLat - minLat) / tileSize));
+        int cols = (int) Math.max(1, Math.ceil((maxLon - minLon) / tileSize));
+        while (rows * cols > MAX_OVERPASS_TILES) {
+            if (rows > cols) {
+                rows = (rows + 1) / 2;
+            } else {
+                cols = (cols + 1) / 2;
+            }
+        }
+        double tileHeight = (maxLat - minLat) / rows;
+        double tileWidth = (maxLon - minLon) / cols;
+        List<String> tiles = new ArrayList<>(rows * cols);
+        for (int row = 0; row < rows; row++) {
+            double south = minLat + row * tileHeight;
+            double north = row == rows - 1 ? maxLat : south + tileHeight;
+            for (int col = 0; col < cols; col++) {
+                double west = minLon + col * tileWidth;
+                double east = col == cols - 1 ? maxLon : west + tileWidth;
+                tiles.add(String.format(Locale.ROOT, "[bbox:%.7f,%.7f,%.7f,%.7f]", south, west, north, east));
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Query the Overpass API tile by tile, a few tiles at a time, and merge the results into one dataset.
+     * Elements crossing tile borders are returned for several tiles, the builder keeps only one of them.
+     * @return The dataset to show, or {@code null} if a tile query did not succeed
+     */
+    private static BoundedChangesetDataSet getTiledAdiffFromOverpass(String changesetId, DataSetChangesetBuilder builder,
+            String beforeTime, String afterTime, List<String> tiles) throws IOException {
+        Logging.info("Querying Overpass API for changeset " + changesetId + " in " + tiles.size() + " tiles");
+        Semaphore slots = new Semaphore(Config.getOverpassParallelQueries());
+        builder.setSkipDuplicates(true);
+        builder.start();
+        List<CompletableFuture<Boolean>> queries = new ArrayList<>(tiles.size());
+        boolean complete = false;
+        try {
+            for (String tile : tiles) {
+                queries.add(AsyncRequest.submit(() -> queryOverpass(beforeTime, afterTime, tile, slots, content -> {
+                    // Tiles are read on their own threads, only adding their primitives takes turns
+                    builder.append(content);
+                    return Boolean.TRUE;
+                })));
+            }
+            for (CompletableFuture<Boolean> query : queries) {
+                if (!Boolean.TRUE.equals(awaitQuery(query))) {
+                    return null;
+                }
+            }
+            complete = true;
+        } finally {
+            if (!complete) {
+                // Aborts the downloads, the builder is dropped
+                queries.forEach(query -> query.cancel(true));
+            }
+        }
+        return builder.finish();
+    }
+
+    private static <T> T awaitQuery(CompletableFuture<T> query) throws IOException {
+        try {
+            return query.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Build a changeset from the disk cache. A cache entry that can not be read is removed.
+     * @return The dataset to show, or {@code null} if the changeset is not cached
+     */
+    private static BoundedChangesetDataSet getCachedChangeset(String changesetId, DataSetChangesetBuilder builder) {
+        InputStream cached = AdiffCache.get(changesetId);
+        if (cached == null) {
+            return null;
+        }
+        try (InputStream content = cached) {
+            Logging.info("Changeset " + changesetId + " found in the adiff cache");
+            BoundedChangesetDataSet data = builder.build(content);
+            if (!data.isComplete()) {
+                AdiffCache.remove(changesetId);
+                return null;
+            }
+            return data;
+        } catch (IOException e) {
+            Logging.warn("Could not read cached changeset " + changesetId + ": " + e.getMessage());
+            AdiffCache.remove(changesetId);
+            return null;
+        }
     }
 
     private static String adjustTime(String isoTime, int seconds) {
@@ -181,45 +712,146 @@ public final class ChangesetController {
     }
 
     /**
-     * Fetch changesets from OSMCha API for a given bbox
+     * Fetch changesets from OSMCha API for a given bbox. Recently fetched pages are taken from memory.
      * @param bbox The bounding box (minLon,minLat,maxLon,maxLat)
      * @param page The page number (1-based)
      * @return The result with changeset list and total count
+     * @throws IOException if OSMCha could not be reached or did not answer with a page
+     */
+    public static OsmchaResult fetchChangesetsFromOsmcha(String bbox, int page) throws IOException {
+        OsmchaResult cached = OsmchaPageCache.get(bbox, page);
+        if (cached != null) {
+            return cached;
+        }
+        String url = Config.getOsmchaChangesetsUrl(bbox, page);
+        OsmchaResult result;
+        try {
+            result = OSMCHA_FLIGHTS.run(url, () -> requestOsmchaPage(url));
+        } catch (JsonException ex) {
+            throw new IOException("Invalid answer from OSMCha: " + ex.getMessage(), ex);
+        }
+        if (result == null) {
+            throw new IOException("OSMCha did not return page " + page + " of the changesets");
+        }
+        OsmchaPageCache.put(bbox, page, result);
+        return result;
+    }
+
+    /**
+     * Request a page from OSMCha
+     * @return The page, or {@code null} if OSMCha did not answer with a page
+     */
+    private static OsmchaResult requestOsmchaPage(String url) throws IOException {
+        Logging.info("Fetching changesets from OSMCha: " + url);
+        String token = Config.getPlatform().getOsmchaToken();
+        return token.isEmpty()
+                ? Request.sendGET(url, ChangesetController::readOsmchaPage)
+                : Request.sendGETWithAuth(url, token, ChangesetController::readOsmchaPage);
+    }
+
+    /**
+     * Read a page of OSMCha changesets as it is downloaded. Only the fields shown in the list are read,
+     * the geometries and other properties of the features are skipped without building them.
      */
-    public static OsmchaResult fetchChangesetsFromOsmcha(String bbox, int page) {
+    static OsmchaResult readOsmchaPage(InputStream in) {
         List<ChangesetBeen> result = new ArrayList<>();
         int totalCount = 0;
-        try {
-            String url = Config.getOsmchaChangesetsUrl(bbox, page);
-            Logging.info("Fetching changesets from OSMCha: " + url);
-            String token = Config.getPlatform().getOsmchaToken();
-            String json = token.isEmpty() ? Request.sendGET(url) : Request.sendGETWithAuth(url, token);
-            if (json == null) {
+        try (JsonParser parser = Json.createParser(in)) {
+            if (!parser.hasNext() || parser.next() != JsonParser.Event.START_OBJECT) {
                 return new OsmchaResult(result, 0);
             }
-            try (JsonReader jsonReader = Json.createReader(new StringReader(json))) {
-                JsonObject root = jsonReader.readObject();
-                totalCount = root.getInt("count", 0);
-                JsonArray features = root.getJsonArray("features");
-                for (JsonValue value : features) {
-                    JsonObject feature = value.asJsonObject();
-                    ChangesetBeen cs = new ChangesetBeen();
-                    cs.setChangesetId(feature.getInt("id"));
-                    JsonObject props = feature.getJsonObject("properties");
-                    cs.setUser(props.getString("user", ""));
-                    cs.setCreate(props.getInt("create", 0));
-                    cs.setModify(props.getInt("modify", 0));
-                    cs.setDelete(props.getInt("delete", 0));
-                    cs.setDate(props.getString("date", ""));
-                    result.add(cs);
+            JsonParser.Event event;
+            while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+                String key = parser.getString();
+                event = parser.next();
+                if ("count".equals(key) && event == JsonParser.Event.VALUE_NUMBER) {
+                    totalCount = parser.getInt();
+                } else if ("features".equals(key) && event == JsonParser.Event.START_ARRAY) {
+                    while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                        if (event == JsonParser.Event.START_OBJECT) {
+                            result.add(readOsmchaFeature(parser));
+                        }
+                    }
+                } else {
+                    skipJsonValue(parser, event);
                 }
             }
-        } catch (Exception ex) {
-            Logging.warn("Could not fetch from OSMCha: " + ex.getMessage());
         }
         return new OsmchaResult(result, totalCount);
     }
 
+    /**
+     * Read an OSMCha feature. The parser is positioned on its start and is left on its end.
+     */
+    private static ChangesetBeen readOsmchaFeature(JsonParser parser) {
+        ChangesetBeen cs = new ChangesetBeen();
+        cs.setUser("");
+        cs.setDate("");
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            String key = parser.getString();
+            event = parser.next();
+            if ("id".equals(key) && event == JsonParser.Event.VALUE_NUMBER) {
+                cs.setChangesetId(parser.getInt());
+            } else if ("properties".equals(key) && event == JsonParser.Event.START_OBJECT) {
+                readOsmchaProperties(parser, cs);
+            } else {
+                skipJsonValue(parser, event);
+            }
+        }
+        return cs;
+    }
+
+    private static void readOsmchaProperties(JsonParser parser, ChangesetBeen cs) {
+        JsonParser.Event event;
+        while ((event = parser.next()) == JsonParser.Event.KEY_NAME) {
+            String key = parser.getString();
+            event = parser.next();
+            if (event == JsonParser.Event.VALUE_STRING && ("user".equals(key) || "date".equals(key))) {
+                if ("user".equals(key)) {
+                    cs.setUser(parser.getString());
+                } else {
+                    cs.setDate(parser.getString());
+                }
+            } else if (event == JsonParser.Event.VALUE_NUMBER && "create".equals(key)) {
+                cs.setCreate(parser.getInt());
+            } else if (event == JsonParser.Event.VALUE_NUMBER && "modify".equals(key)) {
+                cs.setModify(parser.getInt());
+            } else if (event == JsonParser.Event.VALUE_NUMBER && "delete".equals(key)) {
+                cs.setDelete(parser.getInt());
+            } else {
+                skipJsonValue(parser, event);
+            }
+        }
+    }
+
+    /**
+     * Skip the value the parser is positioned on, with all its children
+     */
+    private static void skipJsonValue(JsonParser parser, JsonParser.Event event) {
+        if (event == JsonParser.Event.START_OBJECT) {
+            parser.skipObject();
+        } else if (event == JsonParser.Event.START_ARRAY) {
+            parser.skipArray();
+        }
+    }
+
+    /**
+     * Fetch changesets from OSMCha API for a given bbox on a background thread.
+     * Cancelling the future aborts the download.
+     * @param bbox The bounding box (minLon,minLat,maxLon,maxLat)
+     * @param page The page number (1-based)
+     * @return The future result with changeset list and total count, which fails if OSMCha did not answer
+     * with a page
+     */
+    public static CompletableFuture<OsmchaResult> fetchChangesetsFromOsmchaAsync(String bbox, int page) {
+        OsmchaResult cached = OsmchaPageCache.get(bbox, page);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return AsyncRequest.submit(() -> fetchChangesetsFromOsmcha(bbox, page));
+    }
+
     /**
      * Fetch changesets from the platform API for a given bbox
      * @param bbox The bounding box (minLon,minLat,maxLon,maxLat)
@@ -254,43 +886,83 @@ public final class ChangesetController {
     }
 
     /**
-     * Fetch stats from the API for a page of changesets
+     * Fetch stats from the API for a page of changesets. The stats of up to {@link #STATS_BATCH_SIZE}
+     * changesets are fetched with a single request.
      * @param allChangesets The full list of changesets
      * @param page The page number (0-based)
      */
     public static void fetchStatsForPage(List<ChangesetBeen> allChangesets, int page) {
         int from = page * PAGE_SIZE;
         int to = Math.min(from + PAGE_SIZE, allChangesets.size());
-        for (int i = from; i < to; i++) {
-            fetchChangesetStats(allChangesets.get(i));
+        for (int i = from; i < to; i += STATS_BATCH_SIZE) {
+            fetchChangesetStats(allChangesets.subList(i, Math.min(i + STATS_BATCH_SIZE, to)));
         }
     }
 
     /**
-     * Fetch changeset stats (create/modify/delete counts) from the OSM API
+     * Fetch changeset stats (create/modify/delete counts) of several changesets with one OSM API call
      */
-    private static void fetchChangesetStats(ChangesetBeen cs) {
+    private static void fetchChangesetStats(List<ChangesetBeen> changesets) {
+        Map<Integer, ChangesetBeen> byId = new HashMap<>();
+        StringBuilder ids = new StringBuilder();
+        for (ChangesetBeen cs : changesets) {
+            byId.put(cs.getChangesetId(), cs);
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(cs.getChangesetId());
+        }
         try {
-            String csUrl = Config.getApiUrl() + "changeset/" + cs.getChangesetId();
-            String xml = Request.sendGET(csUrl);
-            if (xml == null) {
-                return;
+            String csUrl = Config.getApiUrl() + "changesets?changesets=" + ids;
+            Request.sendGET(csUrl, content -> {
+                readChangesetStats(content, byId);
+                return Boolean.TRUE;
+            });
+        } catch (IOException ex) {
+            Logging.warn("Could not fetch stats for changesets " + ids + ": " + ex.getMessage());
+        }
+    }
+
+    private static void readChangesetStats(InputStream content, Map<Integer, ChangesetBeen> byId) throws IOException {
+        XMLStreamReader parser = null;
+        try {
+            parser = XmlUtils.newSafeXMLInputFactory().createXMLStreamReader(content);
+            while (parser.hasNext()) {
+                if (parser.next() != XMLStreamConstants.START_ELEMENT || !"changeset".equals(parser.getLocalName())) {
+                    continue;
+                }
+                ChangesetBeen cs = byId.get(parseIntAttr(parser, "id"));
+                if (cs != null) {
+                    // Like the DOM getAttribute, missing attributes are empty
+                    cs.setUser(Objects.toString(parser.getAttributeValue(null, "user"), ""));
+                    cs.setDate(Objects.toString(parser.getAttributeValue(null, "closed_at"), ""));
+                    cs.setCreate(parseIntAttr(parser, "created_count"));
+                    cs.setModify(parseIntAttr(parser, "modified_count"));
+                    cs.setDelete(parseIntAttr(parser, "deleted_count"));
+                }
             }
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder docBuilder = factory.newDocumentBuilder();
-            Document doc = docBuilder.parse(new InputSource(new StringReader(xml)));
-            NodeList csList = doc.getElementsByTagName("changeset");
-            if (csList.getLength() == 0) {
-                return;
-            }
-            Element elem = (Element) csList.item(0);
-            cs.setUser(elem.getAttribute("user"));
-            cs.setDate(elem.getAttribute("closed_at"));
-            cs.setCreate(parseIntAttr(elem, "created_count"));
-            cs.setModify(parseIntAttr(elem, "modified_count"));
-            cs.setDelete(parseIntAttr(elem, "deleted_count"));
-        } catch (Exception ex) {
-            Logging.warn("Could not fetch stats for changeset " + cs.getChangesetId() + ": " + ex.getMessage());
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        } finally {
+            if (parser != null) {
+                try {
+                    parser.close();
+                } catch (XMLStreamException e) {
+                    Logging.trace(e);
+                }
+            }
+        }
+    }
+
+    private static int parseIntAttr(XMLStreamReader parser, String attr) {
+        String val = parser.getAttributeValue(null, attr);
+        if (val == null || val.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
@@ -0,0 +1,323 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.util.Arrays;
+
+/**
+ * A compact, read-only store for the geometry of a changeset.
+ * <p>
+ * Instead of a {@code Node} object per vertex, coordinates are kept as 7-decimal fixed-point values in
+ * {@code int} arrays, so a vertex takes 8 bytes. Lines (ways and relation rectangles) are ranges of the
+ * vertex arrays, points are kept in arrays of their own, and every geometry has an action code.
+ * @author ruben
+ */
+public final class ChangesetGeometry {
+    /** Action code of created objects */
+    public static final byte CREATE = 0;
+    /** Action code of deleted objects */
+    public static final byte DELETE = 1;
+    /** Action code of the old version of modified objects */
+    public static final byte MODIFY_OLD = 2;
+    /** Action code of the new version of modified objects */
+    public static final byte MODIFY_NEW = 3;
+    /** Flag added to the action code of the rectangle showing a relation */
+    public static final byte RELATION = 4;
+
+    /** Factor between degrees and the fixed-point coordinates */
+    public static final double COORDINATE_SCALE = 1e7;
+
+    private static final ChangesetGeometry EMPTY = new Builder().build();
+
+    private final int[] vertexLats;
+    private final int[] vertexLons;
+    /** Index of the first vertex of each line, the line ends where the next one starts */
+    private final int[] lineStarts;
+    /** Bounding box of each line as min lat, min lon, max lat, max lon */
+    private final int[] lineBBoxes;
+    private final byte[] lineActions;
+    private final int lineCount;
+    private final int vertexCount;
+    private final int[] pointLats;
+    private final int[] pointLons;
+    private final byte[] pointActions;
+    private final int pointCount;
+
+    private ChangesetGeometry(Builder builder) {
+        // The arrays are shared with the builder, which only ever writes beyond the counts taken here
+        this.vertexLats = builder.vertexLats;
+        this.vertexLons = builder.vertexLons;
+        this.lineStarts = builder.lineStarts;
+        this.lineBBoxes = builder.lineBBoxes;
+        this.lineActions = builder.lineActions;
+        this.lineCount = builder.lineCount;
+        this.vertexCount = builder.vertexCount;
+        this.pointLats = builder.pointLats;
+        this.pointLons = builder.pointLons;
+        this.pointActions = builder.pointActions;
+        this.pointCount = builder.pointCount;
+    }
+
+    /**
+     * Get an empty geometry
+     * @return A geometry without lines and points
+     */
+    public static ChangesetGeometry empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Get the action code for an action name as used in the changeset dataset
+     * @param action The action, like {@code "modify-old"} or {@code "delete-rel"}
+     * @return The action code, or {@code -1} if the action is unknown
+     */
+    public static byte actionCode(String action) {
+        if (action == null) {
+            return -1;
+        }
+        byte flag = 0;
+        String base = action;
+        if (action.endsWith("-rel")) {
+            flag = RELATION;
+            base = action.substring(0, action.length() - 4);
+        }
+        switch (base) {
+            case "create": return (byte) (CREATE | flag);
+            case "delete": return (byte) (DELETE | flag);
+            case "modify-old": return (byte) (MODIFY_OLD | flag);
+            case "modify-new": return (byte) (MODIFY_NEW | flag);
+            default: return -1;
+        }
+    }
+
+    /**
+     * Convert a coordinate in degrees to the fixed-point representation
+     * @param degrees The coordinate in degrees
+     * @return The fixed-point coordinate
+     */
+    public static int toFixed(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    /**
+     * Convert a fixed-point coordinate to degrees
+     * @param fixed The fixed-point coordinate
+     * @return The coordinate in degrees
+     */
+    public static double toDegrees(int fixed) {
+        return fixed / COORDINATE_SCALE;
+    }
+
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * Get the number of vertices of all lines
+     * @return The vertex count
+     */
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    /**
+     * Get the index of the first vertex of a line
+     * @param line The line index
+     * @return The vertex index
+     */
+    public int getLineStart(int line) {
+        return lineStarts[line];
+    }
+
+    /**
+     * Get the index after the last vertex of a line
+     * @param line The line index
+     * @return The vertex index
+     */
+    public int getLineEnd(int line) {
+        return line + 1 < lineCount ? lineStarts[line + 1] : vertexCount;
+    }
+
+    public byte getLineAction(int line) {
+        return lineActions[line];
+    }
+
+    /**
+     * Check if the bounding box of a line intersects an area
+     * @param line The line index
+     * @param minLat The minimum fixed-point latitude of the area
+     * @param minLon The minimum fixed-point longitude of the area
+     * @param maxLat The maximum fixed-point latitude of the area
+     * @param maxLon The maximum fixed-point longitude of the area
+     * @return {@code true} if the line may be visible in the area
+     */
+    public boolean lineIntersects(int line, int minLat, int minLon, int maxLat, int maxLon) {
+        int i = line * 4;
+        return lineBBoxes[i] <= maxLat && lineBBoxes[i + 1] <= maxLon
+                && lineBBoxes[i + 2] >= minLat && lineBBoxes[i + 3] >= minLon;
+    }
+
+    public int getVertexLat(int vertex) {
+        return vertexLats[vertex];
+    }
+
+    public int getVertexLon(int vertex) {
+        return vertexLons[vertex];
+    }
+
+    public int getPointLat(int point) {
+        return pointLats[point];
+    }
+
+    public int getPointLon(int point) {
+        return pointLons[point];
+    }
+
+    public byte getPointAction(int point) {
+        return pointActions[point];
+    }
+
+    /**
+     * Get the number of geometries, as a measure for the size of the changeset
+     * @return The number of lines and points
+     */
+    public int getGeometryCount() {
+        return lineCount + pointCount;
+    }
+
+    /**
+     * Collects lines and points for a {@link ChangesetGeometry}. Not thread-safe.
+     */
+    public static final class Builder {
+        private int[] vertexLats = new int[64];
+        private int[] vertexLons = new int[64];
+        private int[] lineStarts = new int[16];
+        private int[] lineBBoxes = new int[64];
+        private byte[] lineActions = new byte[16];
+        private int lineCount;
+        private int vertexCount;
+        private int[] pointLats = new int[16];
+        private int[] pointLons = new int[16];
+        private byte[] pointActions = new byte[16];
+        private int pointCount;
+
+        /**
+         * Add a point
+         * @param lat The fixed-point latitude
+         * @param lon The fixed-point longitude
+         * @param action The action code
+         */
+        public void addPoint(int lat, int lon, byte action) {
+            if (pointCount == pointLats.length) {
+                int capacity = Math.max(16, pointCount * 2);
+                pointLats = Arrays.copyOf(pointLats, capacity);
+                pointLons = Arrays.copyOf(pointLons, capacity);
+                pointActions = Arrays.copyOf(pointActions, capacity);
+            }
+            pointLats[pointCount] = lat;
+            pointLons[pointCount] = lon;
+            pointActions[pointCount] = action;
+            pointCount++;
+        }
+
+        /**
+         * Add a line
+         * @param lats The fixed-point latitudes of the vertices
+         * @param lons The fixed-point longitudes of the vertices
+         * @param count The number of vertices to take from the arrays
+         * @param action The action code
+         */
+        public void addLine(int[] lats, int[] lons, int count, byte action) {
+            if (count == 0) {
+                return;
+            }
+            ensureLineCapacity(lineCount + 1);
+            ensureVertexCapacity(vertexCount + count);
+            System.arraycopy(lats, 0, vertexLats, vertexCount, count);
+            System.arraycopy(lons, 0, vertexLons, vertexCount, count);
+            int minLat = Integer.MAX_VALUE;
+            int minLon = Integer.MAX_VALUE;
+            int maxLat = Integer.MIN_VALUE;
+            int maxLon = Integer.MIN_VALUE;
+            for (int i = 0; i < count; i++) {
+                minLat = Math.min(minLat, lats[i]);
+                minLon = Math.min(minLon, lons[i]);
+                maxLat = Math.max(maxLat, lats[i]);
+                maxLon = Math.max(maxLon, lons[i]);
+            }
+            int b = lineCount * 4;
+            lineBBoxes[b] = minLat;
+            lineBBoxes[b + 1] = minLon;
+            lineBBoxes[b + 2] = maxLat;
+            lineBBoxes[b + 3] = maxLon;
+            lineStarts[lineCount] = vertexCount;
+            lineActions[lineCount] = action;
+            lineCount++;
+            vertexCount += count;
+        }
+
+        /**
+         * Append all lines and points of another builder
+         * @param other The builder to take the geometries from
+         */
+        public void append(Builder other) {
+            ensureLineCapacity(lineCount + other.lineCount);
+            ensureVertexCapacity(vertexCount + other.vertexCount);
+            System.arraycopy(other.vertexLats, 0, vertexLats, vertexCount, other.vertexCount);
+            System.arraycopy(other.vertexLons, 0, vertexLons, vertexCount, other.vertexCount);
+            for (int i = 0; i < other.lineCount; i++) {
+                lineStarts[lineCount + i] = other.lineStarts[i] + vertexCount;
+            }
+            System.arraycopy(other.lineBBoxes, 0, lineBBoxes, lineCount * 4, other.lineCount * 4);
+            System.arraycopy(other.lineActions, 0, lineActions, lineCount, other.lineCount);
+            lineCount += other.lineCount;
+            vertexCount += other.vertexCount;
+            for (int i = 0; i < other.pointCount; i++) {
+                addPoint(other.pointLats[i], other.pointLons[i], other.pointActions[i]);
+            }
+        }
+
+        /**
+         * Get the geometry collected so far. This does not copy the data, geometries added later
+         * are not part of the returned geometry.
+         * @return The geometry
+         */
+        public ChangesetGeometry build() {
+            return new ChangesetGeometry(this);
+        }
+
+        /**
+         * Release the spare capacity of the arrays, once no more geometries will be added
+         */
+        public void trimToSize() {
+            vertexLats = Arrays.copyOf(vertexLats, vertexCount);
+            vertexLons = Arrays.copyOf(vertexLons, vertexCount);
+            lineStarts = Arrays.copyOf(lineStarts, lineCount);
+            lineBBoxes = Arrays.copyOf(lineBBoxes, lineCount * 4);
+            lineActions = Arrays.copyOf(lineActions, lineCount);
+            pointLats = Arrays.copyOf(pointLats, pointCount);
+            pointLons = Arrays.copyOf(pointLons, pointCount);
+            pointActions = Arrays.copyOf(pointActions, pointCount);
+        }
+
+        private void ensureLineCapacity(int lines) {
+            if (lines > lineStarts.length) {
+                int capacity = Math.max(Math.max(lines, 16), lineStarts.length * 2);
+                lineStarts = Arrays.copyOf(lineStarts, capacity);
+                lineBBoxes = Arrays.copyOf(lineBBoxes, capacity * 4);
+                lineActions = Arrays.copyOf(lineActions, capacity);
+            }
+        }
+
+        private void ensureVertexCapacity(int vertices) {
+            if (vertices > vertexLats.length) {
+                int capacity = Math.max(Math.max(vertices, 64), vertexLats.length * 2);
+                vertexLats = Arrays.copyOf(vertexLats, capacity);
+                vertexLons = Arrays.copyOf(vertexLons, capacity);
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.swing.AbstractListModel;
+
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.changeset.util.ChangesetController.OsmchaResult;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * The OSMCha changesets of an area as a list model. The list has a row for every changeset OSMCha knows,
+ * but only keeps a few pages of them: a page is fetched when one of its rows is scrolled into view, see
+ * {@link #loadRows(int, int)}, and the least recently shown pages are dropped. A row that is not loaded yet
+ * is {@code null}.
+ * <p>
+ * Must be used on the event dispatch thread.
+ * @author ruben
+ */
+public final class ChangesetListModel extends AbstractListModel<ChangesetBeen> {
+    /** Maximum number of pages kept */
+    private static final int MAX_PAGES = 8;
+    /** Maximum number of pages fetched at the same time, older fetches are cancelled when scrolling on */
+    private static final int MAX_LOADING = 2;
+    /** Number of rows before the end of a page at which the next page is fetched */
+    private static final int READ_AHEAD_ROWS = 25;
+
+    private final String bbox;
+    private final int size;
+    /** Loaded pages by page number, in access order */
+    private final Map<Integer, List<ChangesetBeen>> pages = new LinkedHashMap<Integer, List<ChangesetBeen>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, List<ChangesetBeen>> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    /** Pages being fetched, oldest first */
+    private final Map<Integer, CompletableFuture<OsmchaResult>> loading = new LinkedHashMap<>();
+    private boolean disposed;
+
+    /**
+     * Create a list of the changesets of an area
+     * @param bbox The bounding box (minLon,minLat,maxLon,maxLat)
+     * @param firstPage The first page of changesets in the area
+     */
+    public ChangesetListModel(String bbox, OsmchaResult firstPage) {
+        this.bbox = bbox;
+        this.size = Math.max(firstPage.getTotalCount(), firstPage.getChangesets().size());
+        pages.put(1, firstPage.getChangesets());
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Get a changeset. Swing asks for rows that are not shown as well, e.g. to find a row by its first letters,
+     * so this never fetches anything.
+     * @param index The row
+     * @return The changeset, or {@code null} if it is not loaded yet
+     */
+    @Override
+    public ChangesetBeen getElementAt(int index) {
+        List<ChangesetBeen> changesets = pages.get(index / Config.OSMCHA_PAGE_SIZE + 1);
+        int row = index % Config.OSMCHA_PAGE_SIZE;
+        return changesets != null && row < changesets.size() ? changesets.get(row) : null;
+    }
+
+    /**
+     * Get a changeset if its page is loaded, without fetching anything
+     * @param index The row
+     * @return The changeset, or {@code null} if it is not loaded
+     */
+    public ChangesetBeen getLoadedElementAt(int index) {
+        List<ChangesetBeen> changesets = pages.get(index / Config.OSMCHA_PAGE_SIZE + 1);
+        int row = index % Config.OSMCHA_PAGE_SIZE;
+        return changesets != null && row < changesets.size() ? changesets.get(row) : null;
+    }
+
+    /**
+     * Fetch the pages of the rows that are shown, and the next page when the last shown row is close to its end
+     * @param first The first row that is shown
+     * @param last The last row that is shown
+     */
+    public void loadRows(int first, int last) {
+        if (first < 0 || last < first) {
+            return;
+        }
+        int lastPage = Math.min(last, size - 1) / Config.OSMCHA_PAGE_SIZE + 1;
+        for (int page = first / Config.OSMCHA_PAGE_SIZE + 1; page <= lastPage; page++) {
+            if (pages.get(page) == null) {
+                load(page, false);
+            }
+        }
+        if (last % Config.OSMCHA_PAGE_SIZE >= Config.OSMCHA_PAGE_SIZE - READ_AHEAD_ROWS
+                && lastPage * Config.OSMCHA_PAGE_SIZE < size && !pages.containsKey(lastPage + 1)) {
+            load(lastPage + 1, true);
+        }
+    }
+
+    /**
+     * Stop fetching pages, e.g. because the list was replaced
+     */
+    public void dispose() {
+        disposed = true;
+        loading.values().forEach(future -> future.cancel(true));
+        loading.clear();
+    }
+
+    /**
+     * Fetch a page
+     * @param readAhead {@code true} if no row of the page is shown yet, such a fetch never cancels another one
+     */
+    private void load(int page, boolean readAhead) {
+        if (disposed || loading.containsKey(page) || (readAhead && loading.size() >= MAX_LOADING)) {
+            return;
+        }
+        OsmchaResult cached = OsmchaPageCache.get(bbox, page);
+        if (cached != null) {
+            pages.put(page, cached.getChangesets());
+            fireContentsChanged(page);
+            return;
+        }
+        // Rows scrolled past quickly are not worth their download
+        Iterator<CompletableFuture<OsmchaResult>> oldest = loading.values().iterator();
+        while (loading.size() >= MAX_LOADING && oldest.hasNext()) {
+            oldest.next().cancel(true);
+            oldest.remove();
+        }
+        CompletableFuture<OsmchaResult> future = ChangesetController.fetchChangesetsFromOsmchaAsync(bbox, page);
+        loading.put(page, future);
+        future.whenComplete((result, error) -> GuiHelper.runInEDT(() -> {
+            if (loading.get(page) == future) {
+                loading.remove(page);
+            }
+            if (error != null) {
+                // The rows keep showing that they are loading, the page is fetched again when they are scrolled to
+                if (!future.isCancelled()) {
+                    Logging.warn("Could not fetch page " + page + " from OSMCha: " + error.getMessage());
+                }
+            } else if (result != null && !disposed) {
+                pages.put(page, result.getChangesets());
+                fireContentsChanged(page);
+            }
+        }));
+    }
+
+    private void fireContentsChanged(int page) {
+        int first = (page - 1) * Config.OSMCHA_PAGE_SIZE;
+        fireContentsChanged(this, first, Math.min(size, first + Config.OSMCHA_PAGE_SIZE) - 1);
+    }
+}
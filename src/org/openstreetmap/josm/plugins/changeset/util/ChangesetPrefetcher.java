@@ -0,0 +1,77 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Loads changesets in the background, so they are in the {@link ChangesetCache} by the time the user
+ * wants to see them. Prefetching, including the build of the primitives, runs on a few low priority threads
+ * and only asks the disk cache and the adiffs host, see {@link ChangesetController#prefetchChangeset(String)}.
+ * @author ruben
+ */
+public final class ChangesetPrefetcher {
+    /** Prefetches by changeset id */
+    private static final Map<String, CompletableFuture<Boolean>> TASKS = new LinkedHashMap<>();
+
+    private ChangesetPrefetcher() {
+        // Hide constructor
+    }
+
+    private static final class ExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(Config.getPrefetchThreads(),
+                Utils.newThreadFactory("changeset-prefetch-%d", Thread.MIN_PRIORITY));
+    }
+
+    /**
+     * Prefetch changesets of the current platform, in the given order. Running prefetches of other changesets
+     * are cancelled, except the one of the selected changeset, which the user is about to see.
+     * @param selectedId The selected changeset, or {@code null}
+     * @param changesetIds The changesets to prefetch
+     */
+    public static synchronized void prefetch(String selectedId, List<String> changesetIds) {
+        TASKS.entrySet().removeIf(task -> {
+            if (task.getValue().isDone()) {
+                return true;
+            }
+            if (!task.getKey().equals(selectedId) && !changesetIds.contains(task.getKey())) {
+                // Cancelling the request closes its connection
+                task.getValue().cancel(true);
+                return true;
+            }
+            return false;
+        });
+        for (String changesetId : changesetIds) {
+            if (!TASKS.containsKey(changesetId) && ChangesetCache.get(changesetId) == null) {
+                TASKS.put(changesetId, AsyncRequest.submit(() -> load(changesetId), ExecutorHolder.EXECUTOR));
+            }
+        }
+    }
+
+    /**
+     * Cancel all prefetches, e.g. because the list of changesets changed
+     */
+    public static synchronized void cancel() {
+        TASKS.values().forEach(task -> task.cancel(true));
+        TASKS.clear();
+    }
+
+    private static Boolean load(String changesetId) {
+        try {
+            boolean loaded = ChangesetController.prefetchChangeset(changesetId);
+            Logging.debug(loaded ? "Prefetched changeset {0}" : "Changeset {0} is not on the adiffs host", changesetId);
+            return loaded;
+        } catch (IOException e) {
+            Logging.debug("Could not prefetch changeset {0}: {1}", changesetId, e.getMessage());
+            return Boolean.FALSE;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Tracks the health of a server. After several failed requests in a row the server is considered unhealthy,
+ * and requests to it fail right away for a while. After that, a single trial request decides whether the
+ * server is back.
+ * @author ruben
+ */
+final class CircuitBreaker {
+    /** Number of failures in a row after which requests fail fast */
+    private static final int FAILURE_THRESHOLD = 5;
+    /** Time requests fail fast, in milliseconds */
+    private static final long OPEN_TIME = 60_000;
+
+    private static final Map<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String endpoint;
+    private final AtomicLong retries = new AtomicLong();
+    private int failures;
+    /** The time until requests fail fast, 0 while the server is healthy */
+    private long openUntil;
+    /** The thread sending the trial request, {@code null} if no trial is running */
+    private Thread trial;
+
+    private CircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    /**
+     * Get the circuit breaker of the server of a URL
+     * @param url The URL
+     * @return The circuit breaker
+     */
+    static CircuitBreaker forUrl(URL url) {
+        return BREAKERS.computeIfAbsent(url.getHost(), CircuitBreaker::new);
+    }
+
+    /**
+     * Get the number of retried requests per server
+     * @return The retry counts, by host name
+     */
+    static Map<String, Long> getRetryCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        BREAKERS.forEach((endpoint, breaker) -> counts.put(endpoint, breaker.retries.get()));
+        return counts;
+    }
+
+    /**
+     * Check that a request may be sent. Every call must be followed by {@link #release()} in a finally block.
+     * @throws IOException if the server is considered unhealthy
+     */
+    synchronized void acquire() throws IOException {
+        if (openUntil == 0) {
+            return;
+        }
+        long remaining = openUntil - System.currentTimeMillis();
+        if (remaining > 0 || trial != null) {
+            throw new IOException(String.format("%s is not responding, try again in %d seconds.",
+                    endpoint, Math.max(1, (remaining + 999) / 1000)));
+        }
+        trial = Thread.currentThread();
+    }
+
+    /**
+     * Record a request that got an answer from the server
+     */
+    synchronized void success() {
+        if (openUntil != 0) {
+            Logging.info(endpoint + " is responding again");
+        }
+        failures = 0;
+        openUntil = 0;
+        trial = null;
+    }
+
+    /**
+     * Record a request the server failed to answer
+     */
+    synchronized void failure() {
+        failures++;
+        trial = null;
+        if (failures >= FAILURE_THRESHOLD) {
+            if (openUntil == 0) {
+                Logging.warn(endpoint + " failed " + failures + " times in a row, pausing requests to it");
+            }
+            openUntil = System.currentTimeMillis() + OPEN_TIME;
+        }
+    }
+
+    /**
+     * End a request. A trial request that ended without telling anything about the server, e.g. because it was
+     * cancelled or failed in the client, lets the next request try again.
+     */
+    synchronized void release() {
+        if (trial == Thread.currentThread()) {
+            trial = null;
+        }
+    }
+
+    /**
+     * Record a retried request
+     */
+    void retried() {
+        retries.incrementAndGet();
+    }
+}
@@ -1,6 +1,12 @@
 // License: MIT. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.changeset.util;
 
+import org.openstreetmap.josm.data.preferences.BooleanProperty;
+import org.openstreetmap.josm.data.preferences.DoubleProperty;
+import org.openstreetmap.josm.data.preferences.IntegerProperty;
+import org.openstreetmap.josm.data.preferences.LongProperty;
+import org.openstreetmap.josm.data.preferences.StringProperty;
+
 /**
  * A class storing config values
  * @author ruben
@@ -87,6 +93,35 @@ public final class Config {
     private static Platform platform = Platform.OSM;
     private static String bbox = "";
 
+    private static final BooleanProperty PARALLEL_BUILD = new BooleanProperty("changeset-viewer.build.parallel", true);
+    /** Comma separated file extensions to try on the adiffs host, like {@code .adiff.gz,.adiff} */
+    private static final StringProperty ADIFF_EXTENSIONS = new StringProperty("changeset-viewer.adiffs.extensions", ".adiff");
+    private static final LongProperty MAX_DOWNLOAD_SIZE = new LongProperty("changeset-viewer.download.max-size",
+            Request.MAX_DOWNLOAD_SIZE);
+    /** Size of the adiff disk cache in bytes, 0 disables the cache */
+    private static final LongProperty DISK_CACHE_SIZE = new LongProperty("changeset-viewer.cache.disk-size",
+            256L * 1024 * 1024);
+    /** Total size of the changesets kept in memory, in primitives or vertices */
+    private static final IntegerProperty MEMORY_CACHE_SIZE = new IntegerProperty("changeset-viewer.cache.memory-size",
+            2_000_000);
+    /** Number of changesets after the selected one to load in the background, 0 disables prefetching */
+    private static final IntegerProperty PREFETCH_COUNT = new IntegerProperty("changeset-viewer.prefetch.count", 3);
+    private static final IntegerProperty PREFETCH_THREADS = new IntegerProperty("changeset-viewer.prefetch.threads", 2);
+    /** Milliseconds to wait for the adiffs host before asking Overpass API as well, negative to never race them */
+    private static final IntegerProperty HEDGE_DELAY = new IntegerProperty("changeset-viewer.hedge.delay", 3000);
+    /** Number of times a request to a busy or unreachable server is retried */
+    private static final IntegerProperty MAX_RETRIES = new IntegerProperty("changeset-viewer.retry.max", 3);
+    /** Size in degrees above which the bbox of a changeset is split into tiles for Overpass API */
+    private static final DoubleProperty OVERPASS_TILE_SIZE = new DoubleProperty("changeset-viewer.overpass.tile-size", 5.0);
+    /** Number of tile or time slice queries sent to Overpass API at the same time */
+    private static final IntegerProperty OVERPASS_PARALLEL_QUERIES = new IntegerProperty("changeset-viewer.overpass.parallel-queries", 2);
+    /** Time window in seconds above which a changeset is queried from Overpass API in slices, 0 to never slice */
+    private static final IntegerProperty OVERPASS_SLICE_DURATION = new IntegerProperty("changeset-viewer.overpass.slice-duration", 3600);
+    /** Time in seconds an OSMCha page is kept in memory, 0 to not keep pages */
+    private static final IntegerProperty OSMCHA_CACHE_TTL = new IntegerProperty("changeset-viewer.osmcha.cache-ttl", 300);
+    /** Keep only the geometry and action of each object instead of a JOSM dataset, which drops the tags */
+    private static final BooleanProperty COMPACT_GEOMETRY = new BooleanProperty("changeset-viewer.build.compact", false);
+
     public static void setPlatform(Platform platform) {
         Config.platform = platform;
     }
@@ -103,6 +138,15 @@ public final class Config {
         return platform.getAdiffsHost();
     }
 
+    /**
+     * Get the file extensions to try on the adiffs host, in order. Extensions ending with {@code .gz}
+     * point to gzip compressed adiffs.
+     * @return The extensions
+     */
+    public static String[] getAdiffExtensions() {
+        return ADIFF_EXTENSIONS.get().split("\\s*,\\s*");
+    }
+
     public static String getChangesetWebUrl() {
         return platform.getChangesetUrl();
     }
@@ -120,6 +164,110 @@ public final class Config {
         return base + params;
     }
 
+    /**
+     * Get the maximum number of bytes a download may have, after decompression
+     * @return The download budget in bytes
+     */
+    public static long getMaxDownloadSize() {
+        return MAX_DOWNLOAD_SIZE.get();
+    }
+
+    /**
+     * Get the budget of the adiff disk cache
+     * @return The maximum size of the cached adiffs in bytes, {@code 0} if the cache is disabled
+     */
+    public static long getDiskCacheSize() {
+        return DISK_CACHE_SIZE.get();
+    }
+
+    /**
+     * Get the budget of the memory cache of recently shown changesets
+     * @return The total size of the cached changesets, see {@link ChangesetCache}
+     */
+    public static int getMemoryCacheSize() {
+        return MEMORY_CACHE_SIZE.get();
+    }
+
+    /**
+     * Get the number of changesets to prefetch after the selected one
+     * @return The number of changesets, {@code 0} if prefetching is disabled
+     */
+    public static int getPrefetchCount() {
+        return PREFETCH_COUNT.get();
+    }
+
+    /**
+     * Get the maximum number of changesets to prefetch at the same time
+     * @return The number of prefetch threads
+     */
+    public static int getPrefetchThreads() {
+        return Math.max(1, PREFETCH_THREADS.get());
+    }
+
+    /**
+     * Get the time to wait for the adiffs host before the Overpass API fallback is started in parallel
+     * @return The delay in milliseconds, negative if the fallback only starts after the adiffs host failed
+     */
+    public static int getHedgeDelay() {
+        return HEDGE_DELAY.get();
+    }
+
+    /**
+     * Get the number of times a request to a busy or unreachable server is retried
+     * @return The maximum number of retries
+     */
+    public static int getMaxRetries() {
+        return Math.max(0, MAX_RETRIES.get());
+    }
+
+    /**
+     * Get the size of the tiles a huge changeset bbox is split into for the Overpass API fallback
+     * @return The tile size in degrees
+     */
+    public static double getOverpassTileSize() {
+        return OVERPASS_TILE_SIZE.get();
+    }
+
+    /**
+     * Get the number of tile or time slice queries sent to the Overpass API at the same time
+     * @return The number of parallel queries
+     */
+    public static int getOverpassParallelQueries() {
+        return Math.max(1, OVERPASS_PARALLEL_QUERIES.get());
+    }
+
+    /**
+     * Get the length of the time slices a long-open changeset is queried in from the Overpass API
+     * @return The slice length in seconds, 0 or less to query the whole time window at once
+     */
+    public static int getOverpassSliceDuration() {
+        return OVERPASS_SLICE_DURATION.get();
+    }
+
+    /**
+     * Get the time an OSMCha page is kept in memory
+     * @return The time in seconds, 0 or less to not keep pages
+     */
+    public static int getOsmchaCacheTtl() {
+        return OSMCHA_CACHE_TTL.get();
+    }
+
+    /**
+     * Check if adiffs should be turned into primitives on several cores
+     * @return {@code true} if the parallel build mode is enabled
+     */
+    public static boolean isParallelBuild() {
+        return PARALLEL_BUILD.get();
+    }
+
+    /**
+     * Check if changesets should be kept in a compact geometry store instead of a JOSM dataset
+     * @return {@code true} if the compact store is enabled
+     */
+    public static boolean isCompactGeometry() {
+        return COMPACT_GEOMETRY.get();
+    }
+
     public static void setBBOX(String bbox) {
         Config.bbox = bbox;
     }
@@ -1,35 +1,62 @@
 // License: MIT. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.changeset.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.data.coor.LatLon;
 import org.openstreetmap.josm.data.osm.DataSet;
 import org.openstreetmap.josm.data.osm.Node;
 import org.openstreetmap.josm.data.osm.OsmPrimitive;
+import org.openstreetmap.josm.data.osm.TagMap;
 import org.openstreetmap.josm.data.osm.Way;
 import org.openstreetmap.josm.tools.Logging;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
+import org.openstreetmap.josm.tools.Utils;
+import org.openstreetmap.josm.tools.XmlUtils;
 
 /**
- * Build the changeset dataset from an augmented diff XML file
+ * Build the changeset dataset from an augmented diff XML file.
+ * <p>
+ * The adiff is read with a pull parser, so primitives are created while the document is read and
+ * no DOM of the whole file is ever held in memory. The elements read are grouped in chunks which are
+ * turned into primitives either directly or, in parallel mode, on a fork-join pool. Chunks are always
+ * added to the dataset in document order, so both modes produce the same result.
  * @author ruben
  */
 public class DataSetChangesetBuilder {
 
-    private static final DocumentBuilderFactory DOC_FACTORY = DocumentBuilderFactory.newInstance();
+    /** Number of elements after which a chunk is handed over to be turned into primitives */
+    private static final int CHUNK_ELEMENTS = 1024;
+    /** Number of coordinates after which a chunk is handed over, so chunks of long ways stay small */
+    private static final int CHUNK_COORDINATES = 64 * 1024;
+    /** Time after which a chunk is handed over when a {@link BuildListener} waits for data, in nanoseconds */
+    private static final long CHUNK_INTERVAL = 250_000_000L;
+    /** Returned by {@link #parseFixed(String)} for values that are not a coordinate */
+    private static final long INVALID_COORDINATE = Long.MIN_VALUE;
+    /** Largest fixed-point coordinate, anything beyond a longitude is not a coordinate */
+    private static final long MAX_FIXED_COORDINATE = 1_800_000_000L;
+    /** Number of decimal places of the fixed-point coordinates */
+    private static final int FIXED_DECIMALS = 7;
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L};
 
     /**
      * A bounded changset dataset to show the user
@@ -37,7 +64,10 @@ public class DataSetChangesetBuilder {
     public static class BoundedChangesetDataSet {
 
         private final DataSet dataSet;
+        private final ChangesetGeometry geometry;
         private final Bounds bounds;
+        /** Set by the builder if the adiff could not be read completely */
+        private boolean complete = true;
 
         /**
          * Create a new {@link BoundedChangesetDataSet}
@@ -46,6 +76,18 @@ public class DataSetChangesetBuilder {
          */
         public BoundedChangesetDataSet(final DataSet dataSet, final Bounds bounds) {
             this.dataSet = dataSet;
+            this.geometry = null;
+            this.bounds = bounds;
+        }
+
+        /**
+         * Create a new {@link BoundedChangesetDataSet} backed by a compact geometry store
+         * @param geometry The geometry of the changeset
+         * @param bounds The bounds of the changeset
+         */
+        public BoundedChangesetDataSet(final ChangesetGeometry geometry, final Bounds bounds) {
+            this.dataSet = null;
+            this.geometry = geometry;
             this.bounds = bounds;
         }
 
@@ -53,13 +95,178 @@ public class DataSetChangesetBuilder {
             return this.bounds;
         }
 
+        /**
+         * Get the dataset with the changeset data
+         * @return The dataset, or {@code null} if the changeset is backed by a {@link ChangesetGeometry}
+         */
         public DataSet getDataSet() {
             return this.dataSet;
         }
+
+        /**
+         * Get the compact geometry of the changeset
+         * @return The geometry, or {@code null} if the changeset is backed by a {@link DataSet}
+         */
+        public ChangesetGeometry getGeometry() {
+            return this.geometry;
+        }
+
+        /**
+         * Check if the whole adiff was read. An adiff with XML errors or a remark of the server, which tells
+         * that the query did not finish, only gives a part of the changeset.
+         * @return {@code true} if the changeset may be cached
+         */
+        public boolean isComplete() {
+            return this.complete;
+        }
+
+        /**
+         * Get the size of the changeset, as an estimate for its memory use
+         * @return The number of primitives, or of vertices and points of a {@link ChangesetGeometry}
+         */
+        public int getSize() {
+            if (geometry != null) {
+                return geometry.getVertexCount() + geometry.getPointCount();
+            }
+            return dataSet.allPrimitives().size();
+        }
+    }
+
+    /**
+     * A listener for a dataset that is still being built
+     */
+    @FunctionalInterface
+    public interface BuildListener {
+        /**
+         * Called on the building thread whenever primitives have been added to the dataset.
+         * The dataset may be read under its read lock while it keeps growing.
+         * @param data The dataset being built, with the bounds of the primitives added so far
+         */
+        void dataSetGrown(BoundedChangesetDataSet data);
+    }
+
+    /**
+     * An OSM element as read from the adiff, not yet turned into primitives
+     */
+    private static final class PendingElement {
+        /** One of "node", "way" or "relation" */
+        final String type;
+        /** The action, like "create" or "delete-rel" */
+        final String action;
+        /** The key/value pairs of the element tags, including the action, in the layout used by {@link TagMap} */
+        final String[] tags;
+        /** The lat/lon pairs of the element as fixed-point values, see {@link ChangesetGeometry#toFixed(double)} */
+        final int[] coordinates;
+
+        PendingElement(String type, String action, String[] tags, int[] coordinates) {
+            this.type = type;
+            this.action = action;
+            this.tags = tags;
+            this.coordinates = coordinates;
+        }
+    }
+
+    /**
+     * The primitives created for one chunk of elements
+     */
+    private static final class ChunkResult {
+        /** Newly created untagged way nodes, in the order they were first used */
+        final List<Node> wayNodes = new ArrayList<>();
+        /** All other primitives in the order they must be added to the dataset */
+        final List<OsmPrimitive> primitives = new ArrayList<>();
+        /** The lines and points of the chunk, when building a compact geometry instead of primitives */
+        ChangesetGeometry.Builder geometry;
+        /** The bounds of the nodes and way nodes of the chunk */
+        Bounds bounds;
+    }
+
+    private static final class PoolHolder {
+        static final ForkJoinPool POOL = Utils.newForkJoinPool("changeset-viewer.build.threads",
+                "changeset-builder-%d", Thread.NORM_PRIORITY);
     }
 
+    private boolean parallel;
+    private boolean compact;
+    private BuildListener buildListener;
+    /** Action, type, id and version of the elements read so far, if duplicates are skipped */
+    private Set<String> seenElements;
+    /** The changeset to keep actions of, or {@code null} to keep all actions */
+    private String changesetId;
+    /** The builder the chunks are added to, if this one only reads an adiff for {@link #append(InputStream)} */
+    private DataSetChangesetBuilder target;
+
     private DataSet dataSet;
+    private ChangesetGeometry.Builder geometry;
     private Bounds bounds;
+    /** Whether an error or a server remark was read since {@link #start()} */
+    private boolean incomplete;
+    /** Untagged way nodes of the current build, keyed by {@link #coordinateKey(double, double)} */
+    private final LongObjectMap<Node> wayNodes = new LongObjectMap<>();
+    /** Tag keys and values of the current build, so repeated strings like "highway" or "yes" are stored once */
+    private final Map<String, String> stringPool = new HashMap<>();
+    /** Key/value pairs of the element being read, in the layout used by {@link TagMap} */
+    private String[] tagBuffer = new String[16];
+    private int tagBufferSize;
+    /** Lat/lon pairs of the element being read */
+    private int[] coordinateBuffer = new int[256];
+    private int coordinateBufferSize;
+    /** The elements read since the last chunk was handed over */
+    private List<PendingElement> chunk = new ArrayList<>();
+    private int chunkCoordinates;
+    private long chunkStart;
+    /** Whether an action is being read, whose elements may still be discarded */
+    private boolean actionPending;
+    /** The version of the old element of the action being read */
+    private String oldVersion;
+    /** Chunks being turned into primitives in parallel mode, oldest first */
+    private final Deque<ForkJoinTask<ChunkResult>> pendingChunks = new ArrayDeque<>();
+
+    /**
+     * Set whether chunks of the adiff are turned into primitives on several cores.
+     * Reading the XML and adding the primitives to the dataset always happens on the calling thread.
+     * @param parallel {@code true} to use a fork-join pool
+     */
+    public void setParallel(final boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Set whether to build a compact {@link ChangesetGeometry} instead of a {@link DataSet}.
+     * The compact store needs a fraction of the memory, but only keeps the geometry and action of each object.
+     * @param compact {@code true} to build a {@link ChangesetGeometry}
+     */
+    public void setCompact(final boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Set whether an OSM element is skipped if the same version of it was already read with the same action.
+     * Needed when the adiffs added with {@link #append(InputStream)} overlap.
+     * @param skipDuplicates {@code true} to skip duplicate elements
+     */
+    public void setSkipDuplicates(final boolean skipDuplicates) {
+        this.seenElements = skipDuplicates ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    /**
+     * Set the changeset whose changes are kept. Actions of other changesets, which an Overpass query for an
+     * area and time window returns as well, are skipped. The old version of a modified or deleted object
+     * belongs to an earlier changeset, so an action is judged by its new or created version. A modified object
+     * whose version did not change, like a way whose nodes were moved, is always kept: its new version still
+     * names the changeset of its last own change.
+     * @param changesetId The changeset id, or {@code null} to keep all actions
+     */
+    public void setChangesetId(final String changesetId) {
+        this.changesetId = changesetId;
+    }
+
+    /**
+     * Set a listener to show the dataset while it is being built
+     * @param buildListener The listener, or {@code null}
+     */
+    public void setBuildListener(final BuildListener buildListener) {
+        this.buildListener = buildListener;
+    }
 
     /**
      * Build the dataset to show the user
@@ -67,146 +274,551 @@ public class DataSetChangesetBuilder {
      * @return The dataset
      */
     public BoundedChangesetDataSet build(final String dataString) {
-        dataSet = new DataSet();
+        return build(new StringReader(dataString));
+    }
+
+    /**
+     * Build the dataset to show the user, reading the adiff as a stream
+     * @param reader The reader providing the adiff XML
+     * @return The dataset
+     */
+    public BoundedChangesetDataSet build(final Reader reader) {
+        try {
+            return build(XmlUtils.newSafeXMLInputFactory().createXMLStreamReader(reader));
+        } catch (IOException | XMLStreamException e) {
+            return logError(e);
+        }
+    }
+
+    /**
+     * Build the dataset to show the user while the adiff is still being received.
+     * The encoding is taken from the XML declaration.
+     * @param in The stream providing the adiff XML, usually a network response
+     * @return The dataset
+     * @throws IOException if the stream could not be read, e.g. when the connection was lost, or the server
+     * reports that the query failed
+     */
+    public BoundedChangesetDataSet build(final InputStream in) throws IOException {
+        try {
+            return build(XmlUtils.newSafeXMLInputFactory().createXMLStreamReader(in));
+        } catch (XMLStreamException e) {
+            return logError(e);
+        }
+    }
+
+    /**
+     * Start building one dataset from several adiffs, e.g. the results of queries for parts of an area.
+     * Add the adiffs with {@link #append(InputStream)} and get the dataset with {@link #finish()}.
+     */
+    public void start() {
+        dataSet = compact ? null : new DataSet();
+        geometry = compact ? new ChangesetGeometry.Builder() : null;
         bounds = null;
+        incomplete = false;
+        if (seenElements != null) {
+            seenElements.clear();
+        }
+    }
+
+    /**
+     * Add an adiff to the dataset started with {@link #start()}. Several threads may add adiffs at the same time:
+     * each adiff is read and turned into primitives on the calling thread, only adding the primitives to the
+     * dataset takes turns.
+     * @param in The stream providing the adiff XML
+     * @throws IOException if the stream could not be read, or the server reports that the query failed
+     */
+    public void append(final InputStream in) throws IOException {
+        final DataSetChangesetBuilder reader = new DataSetChangesetBuilder();
+        reader.target = this;
+        reader.compact = compact;
+        reader.changesetId = changesetId;
+        reader.seenElements = seenElements;
+        reader.buildListener = buildListener;
         try {
-            DocumentBuilder docBuilder = DOC_FACTORY.newDocumentBuilder();
-            Document doc = docBuilder.parse(new InputSource(new StringReader(dataString)));
-
-            // Iterate direct children of root instead of getElementsByTagName
-            org.w3c.dom.Node child = doc.getDocumentElement().getFirstChild();
-            while (child != null) {
-                if (child instanceof Element) {
-                    Element elem = (Element) child;
-                    if ("action".equals(elem.getTagName())) {
-                        processAction(elem, elem.getAttribute("type"));
-                    }
+            reader.read(XmlUtils.newSafeXMLInputFactory().createXMLStreamReader(in));
+        } catch (XMLStreamException e) {
+            reader.logError(e);
+        } finally {
+            if (reader.incomplete) {
+                synchronized (this) {
+                    incomplete = true;
                 }
-                child = child.getNextSibling();
             }
-        } catch (Exception e) {
-            Logging.error("Error parsing adiff XML: " + e.getMessage());
-            Logging.error(e);
         }
+    }
+
+    /**
+     * Finish the dataset started with {@link #start()}
+     * @return The dataset
+     */
+    public synchronized BoundedChangesetDataSet finish() {
+        if (geometry != null) {
+            geometry.trimToSize();
+        }
+        wayNodes.clear();
+        stringPool.clear();
+        if (seenElements != null) {
+            seenElements.clear();
+        }
+        chunk = new ArrayList<>();
+        chunkCoordinates = 0;
+        pendingChunks.forEach(task -> task.cancel(false));
+        pendingChunks.clear();
+        return result();
+    }
+
+    private BoundedChangesetDataSet build(final XMLStreamReader parser) throws IOException {
+        start();
+        try {
+            read(parser);
+        } catch (IOException e) {
+            finish();
+            throw e;
+        }
+        return finish();
+    }
+
+    private void read(final XMLStreamReader parser) throws IOException {
+        try {
+            parse(parser);
+            finishChunks();
+        } catch (XMLStreamException e) {
+            // The parser wraps errors of the underlying stream, which must not be mistaken for bad XML
+            if (e.getNestedException() instanceof IOException) {
+                throw (IOException) e.getNestedException();
+            }
+            logError(e);
+            finishChunks();
+        } catch (RuntimeException e) {
+            logError(e);
+        } finally {
+            try {
+                parser.close();
+            } catch (XMLStreamException e) {
+                Logging.trace(e);
+            }
+        }
+    }
 
-        return new BoundedChangesetDataSet(dataSet, bounds);
+    private BoundedChangesetDataSet logError(final Exception e) {
+        incomplete = true;
+        Logging.error("Error parsing adiff XML: " + e.getMessage());
+        Logging.error(e);
+        return result();
     }
 
-    private void processAction(final Element actionElem, final String actionType) {
-        switch (actionType) {
+    /**
+     * Get what has been built so far
+     */
+    private BoundedChangesetDataSet result() {
+        final Bounds currentBounds = bounds != null ? new Bounds(bounds) : null;
+        final BoundedChangesetDataSet data = compact
+                ? new BoundedChangesetDataSet(geometry != null ? geometry.build() : ChangesetGeometry.empty(), currentBounds)
+                : new BoundedChangesetDataSet(dataSet != null ? dataSet : new DataSet(), currentBounds);
+        data.complete = !incomplete;
+        return data;
+    }
+
+    // --- Reading the adiff ---
+
+    private void parse(final XMLStreamReader parser) throws XMLStreamException, IOException {
+        while (parser.hasNext()) {
+            if (parser.next() != XMLStreamConstants.START_ELEMENT) {
+                continue;
+            }
+            String name = parser.getLocalName();
+            if ("action".equals(name)) {
+                processAction(parser, parser.getAttributeValue(null, "type"));
+            } else if ("remark".equals(name)) {
+                // Overpass reports a query that ran out of time or memory with a remark after the partial output
+                incomplete = true;
+                String remark = parser.getElementText().trim();
+                if (remark.contains("runtime error")) {
+                    throw new AdiffStitcher.QueryFailedException(remark);
+                }
+                Logging.warn("Server remark in adiff: " + remark);
+            }
+        }
+    }
+
+    /**
+     * Process an {@code <action>} element. The parser is positioned on its start tag and is left on its end tag.
+     */
+    private void processAction(final XMLStreamReader parser, final String actionType) throws XMLStreamException {
+        // The action to use for an OSM element directly below <action>, below <old> and below <new>
+        final String directAction;
+        final String oldAction;
+        final String newAction;
+        switch (actionType == null ? "" : actionType) {
             case "create":
-                processCreateAction(actionElem);
+                directAction = "create";
+                oldAction = null;
+                newAction = null;
                 break;
             case "modify":
-                processModifyAction(actionElem);
+                directAction = null;
+                oldAction = "modify-old";
+                newAction = "modify-new";
                 break;
             case "delete":
-                processDeleteAction(actionElem);
+                directAction = null;
+                oldAction = "delete";
+                newAction = null;
                 break;
             default:
                 Logging.warn("Unknown action type: " + actionType);
+                skipElement(parser);
+                return;
         }
-    }
-
-    private void processCreateAction(final Element actionElem) {
-        Element osmElement = getFirstChildOsmElement(actionElem);
-        if (osmElement == null) return;
-        processOsmElement(osmElement, "create");
-    }
-
-    private void processModifyAction(final Element actionElem) {
-        Element oldContainer = getDirectChild(actionElem, "old");
-        Element newContainer = getDirectChild(actionElem, "new");
-        if (oldContainer != null) {
-            Element oldElement = getFirstChildOsmElement(oldContainer);
-            if (oldElement != null) {
-                processOsmElement(oldElement, "modify-old");
+        boolean directSeen = false;
+        boolean oldSeen = false;
+        boolean newSeen = false;
+        // The old version is read before the new one tells whether the action belongs to the changeset
+        final int actionStart = chunk.size();
+        actionPending = true;
+        oldVersion = null;
+        boolean ended = false;
+        try {
+            while (parser.hasNext()) {
+                int event = parser.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    ended = true;
+                    return;
+                } else if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = parser.getLocalName();
+                if ("old".equals(name) && !oldSeen) {
+                    oldSeen = true;
+                    processContainer(parser, oldAction, false);
+                } else if ("new".equals(name) && !newSeen) {
+                    newSeen = true;
+                    if (!processContainer(parser, newAction, true)) {
+                        discardPendingElements(actionStart);
+                    }
+                } else if (directAction != null && !directSeen && isOsmElement(name)) {
+                    directSeen = true;
+                    if (isOtherChangeset(parser)) {
+                        skipElement(parser);
+                    } else {
+                        processOsmElement(parser, directAction);
+                    }
+                } else {
+                    skipElement(parser);
+                }
             }
-        }
-        if (newContainer != null) {
-            Element newElement = getFirstChildOsmElement(newContainer);
-            if (newElement != null) {
-                processOsmElement(newElement, "modify-new");
+        } finally {
+            if (!ended) {
+                // Cut off by an error, the elements read so far may only be a part of the action
+                discardPendingElements(actionStart);
             }
+            actionPending = false;
+            dispatchChunkIfFull();
         }
     }
 
-    private void processDeleteAction(final Element actionElem) {
-        Element oldContainer = getDirectChild(actionElem, "old");
-        if (oldContainer != null) {
-            Element oldElement = getFirstChildOsmElement(oldContainer);
-            if (oldElement != null) {
-                processOsmElement(oldElement, "delete");
+    /**
+     * Process the first OSM element of an {@code <old>} or {@code <new>} container
+     * @param filter {@code true} if the element decides whether the action belongs to the changeset, otherwise
+     * the version of the element is kept to compare it with the new one
+     * @return {@code false} if the action belongs to another changeset
+     */
+    private boolean processContainer(final XMLStreamReader parser, final String action, final boolean filter)
+            throws XMLStreamException {
+        boolean seen = false;
+        boolean keep = true;
+        while (parser.hasNext()) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if (!seen && isOsmElement(parser.getLocalName())) {
+                    seen = true;
+                    if (filter) {
+                        keep = !isOtherChangeset(parser) || isUnchangedVersion(parser);
+                    } else {
+                        oldVersion = parser.getAttributeValue(null, "version");
+                    }
+                    if (keep && action != null) {
+                        processOsmElement(parser, action);
+                        continue;
+                    }
+                }
+                skipElement(parser);
             }
         }
+        return keep;
     }
 
-    private void processOsmElement(final Element elem, final String action) {
-        String tagName = elem.getTagName();
-        Map<String, String> tags = extractTags(elem);
-        tags.put("action", action);
+    private void processOsmElement(final XMLStreamReader parser, final String action) throws XMLStreamException {
+        String tagName = parser.getLocalName();
+        if (seenElements != null && isDuplicate(parser, action, tagName)) {
+            skipElement(parser);
+            return;
+        }
+        tagBufferSize = 0;
+        coordinateBufferSize = 0;
         switch (tagName) {
             case "node":
-                processPoint(tags, elem);
+                processPoint(parser, action);
                 break;
             case "way":
-                processLineString(tags, elem);
+                processLineString(parser, action);
                 break;
             case "relation":
-                Bounds boundsRelation = buildRelation(elem);
-                bounds2rectangle(tags, boundsRelation, action + "-rel");
+                processRelation(parser, action);
                 break;
             default:
                 Logging.warn("Unknown OSM element type: " + tagName);
+                skipElement(parser);
         }
     }
 
-    private void processPoint(final Map<String, String> tags, final Element nodeElem) {
-        LatLon latLon = extractLatLon(nodeElem);
-        if (latLon == null) return;
-        final Node node = createNode(latLon);
-        node.setKeys(tags);
+    private void processPoint(final XMLStreamReader parser, final String action) throws XMLStreamException {
+        extractCoordinate(parser);
+        while (parser.hasNext()) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("tag".equals(parser.getLocalName())) {
+                    extractTag(parser);
+                }
+                skipElement(parser);
+            }
+        }
+        if (coordinateBufferSize == 0) return;
+        addPendingElement("node", action);
     }
 
-    private void processLineString(final Map<String, String> tags, final Element wayElem) {
-        List<LatLon> coordinates = extractWayCoordinates(wayElem);
-        if (coordinates.isEmpty()) {
+    private void processLineString(final XMLStreamReader parser, final String action) throws XMLStreamException {
+        while (parser.hasNext()) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = parser.getLocalName();
+                if ("nd".equals(name)) {
+                    extractCoordinate(parser);
+                } else if ("tag".equals(name)) {
+                    extractTag(parser);
+                }
+                skipElement(parser);
+            }
+        }
+        if (coordinateBufferSize == 0) {
             return;
         }
-        final Way way = createWay(coordinates);
-        way.setKeys(tags);
+        addPendingElement("way", action);
     }
 
-    private Node createNode(final LatLon latLon) {
-        final Node node = new Node(latLon);
-        dataSet.addPrimitive(node);
-        extendBounds(latLon);
-        return node;
+    private void processRelation(final XMLStreamReader parser, final String action) throws XMLStreamException {
+        while (parser.hasNext()) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = parser.getLocalName();
+                if ("member".equals(name)) {
+                    String memberType = parser.getAttributeValue(null, "type");
+                    if ("way".equals(memberType)) {
+                        extractWayMemberCoordinates(parser);
+                        continue;
+                    } else if ("node".equals(memberType)) {
+                        extractCoordinate(parser);
+                    }
+                } else if ("tag".equals(name)) {
+                    extractTag(parser);
+                }
+                skipElement(parser);
+            }
+        }
+        if (coordinateBufferSize == 0) {
+            return;
+        }
+        addPendingElement("relation", intern(action + "-rel"));
     }
 
-    private Way createWay(final List<LatLon> coordinates) {
-        final Way way = new Way();
-        List<Node> nodes = new ArrayList<>(coordinates.size());
-        for (LatLon ll : coordinates) {
-            nodes.add(createNode(ll));
+    /**
+     * Add the {@code <nd>} children of a way {@code <member>} to the coordinates of the relation.
+     * The parser is positioned on the member start tag and is left on its end tag.
+     */
+    private void extractWayMemberCoordinates(final XMLStreamReader parser) throws XMLStreamException {
+        while (parser.hasNext()) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.END_ELEMENT) {
+                break;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                if ("nd".equals(parser.getLocalName())) {
+                    extractCoordinate(parser);
+                }
+                skipElement(parser);
+            }
         }
-        way.setNodes(nodes);
-        dataSet.addPrimitive(way);
-        return way;
     }
 
-    private void extendBounds(final LatLon latLon) {
-        if (bounds == null) {
-            bounds = new Bounds(latLon.lat(), latLon.lon(), latLon.lat(), latLon.lon());
-        } else {
-            bounds.extend(latLon.lat(), latLon.lon());
+    private boolean isOtherChangeset(final XMLStreamReader parser) {
+        if (changesetId == null) {
+            return false;
+        }
+        final String changeset = parser.getAttributeValue(null, "changeset");
+        return changeset != null && !changeset.equals(changesetId);
+    }
+
+    /**
+     * Check if the element has the version of the old element, i.e. only its members changed
+     */
+    private boolean isUnchangedVersion(final XMLStreamReader parser) {
+        return oldVersion != null && oldVersion.equals(parser.getAttributeValue(null, "version"));
+    }
+
+    private boolean isDuplicate(final XMLStreamReader parser, final String action, final String type) {
+        final String id = parser.getAttributeValue(null, "id");
+        return id != null
+                && !seenElements.add(action + '/' + type + '/' + id + '/' + parser.getAttributeValue(null, "version"));
+    }
+
+    // --- Chunking ---
+
+    private void addPendingElement(final String type, final String action) {
+        String[] tags = null;
+        if (!compact) {
+            putTag("action", action);
+            tags = Arrays.copyOf(tagBuffer, tagBufferSize);
+        }
+        chunk.add(new PendingElement(type, action, tags, Arrays.copyOf(coordinateBuffer, coordinateBufferSize)));
+        chunkCoordinates += coordinateBufferSize / 2;
+        if (chunk.size() == 1) {
+            chunkStart = System.nanoTime();
+        }
+        dispatchChunkIfFull();
+    }
+
+    private void dispatchChunkIfFull() {
+        // The elements of an action stay in the chunk until it is known whether they are kept
+        if (!actionPending && (chunk.size() >= CHUNK_ELEMENTS || chunkCoordinates >= CHUNK_COORDINATES
+                || (buildListener != null && System.nanoTime() - chunkStart >= CHUNK_INTERVAL))) {
+            dispatchChunk();
         }
     }
 
-    private void bounds2rectangle(final Map<String, String> tags, final Bounds relBounds, final String relAction) {
-        if (relBounds == null) {
+    /**
+     * Drop the elements added to the chunk since an action started, because the action belongs to another changeset
+     * @param actionStart The size of the chunk when the action started
+     */
+    private void discardPendingElements(final int actionStart) {
+        while (chunk.size() > actionStart) {
+            chunkCoordinates -= chunk.remove(chunk.size() - 1).coordinates.length / 2;
+        }
+    }
+
+    /**
+     * Hand over the elements read so far to be turned into primitives
+     */
+    private void dispatchChunk() {
+        if (chunk.isEmpty()) {
             return;
         }
+        final List<PendingElement> elements = chunk;
+        chunk = new ArrayList<>();
+        chunkCoordinates = 0;
+        if (target != null) {
+            // Nodes are shared with the other adiffs when the chunk is merged, like in parallel mode
+            final ChunkResult result = compact ? createGeometry(elements) : createPrimitives(elements, new LongObjectMap<>());
+            synchronized (target) {
+                target.mergeChunk(result);
+            }
+            return;
+        }
+        if (!parallel) {
+            // Use the build-wide map directly, so nodes are shared without a remapping step
+            mergeChunk(compact ? createGeometry(elements) : createPrimitives(elements, wayNodes));
+            return;
+        }
+        final ForkJoinPool pool = PoolHolder.POOL;
+        pendingChunks.add(pool.submit(() -> compact ? createGeometry(elements) : createPrimitives(elements, new LongObjectMap<>())));
+        // Merge finished chunks early and keep the number of chunks in memory bounded
+        while (!pendingChunks.isEmpty()
+                && (pendingChunks.peekFirst().isDone() || pendingChunks.size() > 2 * pool.getParallelism())) {
+            mergeChunk(pendingChunks.pollFirst().join());
+        }
+    }
+
+    private void finishChunks() {
+        dispatchChunk();
+        while (!pendingChunks.isEmpty()) {
+            mergeChunk(pendingChunks.pollFirst().join());
+        }
+    }
+
+    /**
+     * Turn a chunk of elements into primitives. This does not touch any state of the builder, so it can run
+     * on any thread.
+     * @param elements The elements of the chunk
+     * @param nodes The way nodes known to the chunk, keyed by coordinate
+     * @return The primitives to add to the dataset
+     */
+    private static ChunkResult createPrimitives(final List<PendingElement> elements, final LongObjectMap<Node> nodes) {
+        final ChunkResult result = new ChunkResult();
+        for (PendingElement element : elements) {
+            switch (element.type) {
+                case "node":
+                    final LatLon latLon = toLatLon(element.coordinates[0], element.coordinates[1]);
+                    final Node node = new Node(latLon);
+                    node.setKeys(new TagMap(element.tags));
+                    result.primitives.add(node);
+                    result.bounds = extendBounds(result.bounds, latLon.lat(), latLon.lon());
+                    break;
+                case "way":
+                    createWay(element, nodes, result);
+                    break;
+                default:
+                    createRelationRectangle(element, result);
+            }
+        }
+        return result;
+    }
+
+    private static void createWay(final PendingElement element, final LongObjectMap<Node> nodes, final ChunkResult result) {
+        final int[] coordinates = element.coordinates;
+        final List<Node> wayNodes = new ArrayList<>(coordinates.length / 2);
+        for (int i = 0; i < coordinates.length; i += 2) {
+            wayNodes.add(getOrCreateWayNode(coordinates[i], coordinates[i + 1], nodes, result));
+        }
+        final Way way = new Way();
+        way.setNodes(wayNodes);
+        way.setKeys(new TagMap(element.tags));
+        result.primitives.add(way);
+    }
+
+    /**
+     * Get the way node at a coordinate, creating it if this build has not seen the coordinate yet.
+     * Junctions and the old and new version of a modified way thus share their nodes.
+     */
+    private static Node getOrCreateWayNode(final int lat, final int lon, final LongObjectMap<Node> nodes,
+            final ChunkResult result) {
+        final long key = coordinateKey(lat, lon);
+        Node node = nodes.get(key);
+        if (node == null) {
+            final LatLon latLon = toLatLon(lat, lon);
+            node = new Node(latLon);
+            nodes.put(key, node);
+            result.wayNodes.add(node);
+            result.bounds = extendBounds(result.bounds, latLon.lat(), latLon.lon());
+        }
+        return node;
+    }
+
+    /**
+     * Show a relation as the rectangle around its members. The rectangle does not count for the changeset bounds.
+     */
+    private static void createRelationRectangle(final PendingElement element, final ChunkResult result) {
+        final int[] coordinates = element.coordinates;
+        Bounds relBounds = null;
+        for (int i = 0; i < coordinates.length; i += 2) {
+            relBounds = extendBounds(relBounds,
+                    ChangesetGeometry.toDegrees(coordinates[i]), ChangesetGeometry.toDegrees(coordinates[i + 1]));
+        }
         double minLat = relBounds.getMinLat();
         double minLon = relBounds.getMinLon();
         double maxLat = relBounds.getMaxLat();
@@ -220,135 +832,281 @@ public class DataSetChangesetBuilder {
         );
         Way way = new Way();
         way.setNodes(nodes);
-        Map<String, String> relTags = new HashMap<>(tags);
-        relTags.put("action", relAction);
-        way.setKeys(relTags);
-        dataSet.addPrimitiveRecursive(way);
-    }
-
-    private static Bounds buildRelation(final Element relationElem) {
-        Bounds boundsRel = null;
-        // Iterate direct children for member elements
-        org.w3c.dom.Node child = relationElem.getFirstChild();
-        while (child != null) {
-            if (child instanceof Element) {
-                Element member = (Element) child;
-                if ("member".equals(member.getTagName())) {
-                    String memberType = member.getAttribute("type");
-                    if ("way".equals(memberType)) {
-                        boundsRel = extendBoundsFromWayNds(member, boundsRel);
-                    } else if ("node".equals(memberType)) {
-                        LatLon latLon = extractLatLon(member);
-                        if (latLon != null) {
-                            boundsRel = extendStaticBounds(boundsRel, latLon);
-                        }
-                    }
-                }
+        way.setKeys(new TagMap(element.tags));
+        result.primitives.addAll(nodes);
+        result.primitives.add(way);
+    }
+
+    /**
+     * Turn a chunk of elements into lines and points of a compact geometry. This does not touch any state
+     * of the builder, so it can run on any thread.
+     * @param elements The elements of the chunk
+     * @return The geometry to add to the result
+     */
+    private static ChunkResult createGeometry(final List<PendingElement> elements) {
+        final ChunkResult result = new ChunkResult();
+        final ChangesetGeometry.Builder chunkGeometry = new ChangesetGeometry.Builder();
+        result.geometry = chunkGeometry;
+        int[] lats = new int[256];
+        int[] lons = new int[256];
+        for (PendingElement element : elements) {
+            final byte action = ChangesetGeometry.actionCode(element.action);
+            final int[] coordinates = element.coordinates;
+            final int count = coordinates.length / 2;
+            if (count > lats.length) {
+                lats = new int[count];
+                lons = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                lats[i] = coordinates[2 * i];
+                lons[i] = coordinates[2 * i + 1];
+            }
+            if ("relation".equals(element.type)) {
+                addRectangle(chunkGeometry, lats, lons, count, action);
+                continue;
+            }
+            for (int i = 0; i < count; i++) {
+                result.bounds = extendBounds(result.bounds,
+                        ChangesetGeometry.toDegrees(lats[i]), ChangesetGeometry.toDegrees(lons[i]));
             }
-            child = child.getNextSibling();
+            if ("node".equals(element.type)) {
+                chunkGeometry.addPoint(lats[0], lons[0], action);
+            } else {
+                chunkGeometry.addLine(lats, lons, count, action);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Add the rectangle around the coordinates of a relation. The rectangle does not count for the changeset bounds.
+     */
+    private static void addRectangle(final ChangesetGeometry.Builder chunkGeometry, final int[] lats, final int[] lons,
+            final int count, final byte action) {
+        int minLat = Integer.MAX_VALUE;
+        int minLon = Integer.MAX_VALUE;
+        int maxLat = Integer.MIN_VALUE;
+        int maxLon = Integer.MIN_VALUE;
+        for (int i = 0; i < count; i++) {
+            minLat = Math.min(minLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            maxLon = Math.max(maxLon, lons[i]);
         }
-        return boundsRel;
+        chunkGeometry.addLine(new int[] {minLat, minLat, maxLat, maxLat, minLat},
+                new int[] {minLon, maxLon, maxLon, minLon, minLon}, 5, action);
     }
 
-    private static Bounds extendBoundsFromWayNds(final Element memberElem, Bounds boundsRel) {
-        org.w3c.dom.Node child = memberElem.getFirstChild();
-        while (child != null) {
-            if (child instanceof Element) {
-                Element nd = (Element) child;
-                if ("nd".equals(nd.getTagName())) {
-                    LatLon latLon = extractLatLon(nd);
-                    if (latLon != null) {
-                        boundsRel = extendStaticBounds(boundsRel, latLon);
+    /**
+     * Add the primitives of a chunk to the dataset. Way nodes the chunk created for a coordinate that an
+     * earlier chunk already has a node for are replaced by that node.
+     * The chunk is added under the write lock of the dataset, so readers never see half of a chunk.
+     */
+    private void mergeChunk(final ChunkResult result) {
+        if (result.geometry != null) {
+            geometry.append(result.geometry);
+            mergeBounds(result);
+            return;
+        }
+        dataSet.beginUpdate();
+        try {
+            Map<Node, Node> replacements = null;
+            for (Node node : result.wayNodes) {
+                final long key = coordinateKey(node.lat(), node.lon());
+                final Node known = wayNodes.get(key);
+                if (known == null || known == node) {
+                    wayNodes.put(key, node);
+                    dataSet.addPrimitive(node);
+                } else {
+                    if (replacements == null) {
+                        replacements = new IdentityHashMap<>();
                     }
+                    replacements.put(node, known);
+                }
+            }
+            for (OsmPrimitive primitive : result.primitives) {
+                if (replacements != null && primitive instanceof Way) {
+                    replaceNodes((Way) primitive, replacements);
                 }
+                dataSet.addPrimitive(primitive);
             }
-            child = child.getNextSibling();
+        } finally {
+            dataSet.endUpdate();
         }
-        return boundsRel;
+        mergeBounds(result);
     }
 
-    private static Bounds extendStaticBounds(Bounds b, LatLon ll) {
+    private void mergeBounds(final ChunkResult result) {
+        if (result.bounds != null) {
+            if (bounds == null) {
+                bounds = new Bounds(result.bounds);
+            } else {
+                bounds.extend(result.bounds);
+            }
+            if (buildListener != null) {
+                buildListener.dataSetGrown(result());
+            }
+        }
+    }
+
+    private static void replaceNodes(final Way way, final Map<Node, Node> replacements) {
+        List<Node> nodes = way.getNodes();
+        boolean changed = false;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node replacement = replacements.get(nodes.get(i));
+            if (replacement != null) {
+                nodes.set(i, replacement);
+                changed = true;
+            }
+        }
+        if (changed) {
+            way.setNodes(nodes);
+        }
+    }
+
+    private static Bounds extendBounds(final Bounds b, final double lat, final double lon) {
         if (b == null) {
-            return new Bounds(ll.lat(), ll.lon(), ll.lat(), ll.lon());
+            return new Bounds(lat, lon, lat, lon);
         }
-        b.extend(ll.lat(), ll.lon());
+        b.extend(lat, lon);
         return b;
     }
 
-    // --- XML helper methods using direct child iteration ---
+    /**
+     * Pack a coordinate into a single key. OSM stores coordinates with 7 decimal places, so the
+     * fixed-point values identify a coordinate exactly.
+     */
+    private static long coordinateKey(final double lat, final double lon) {
+        return coordinateKey(ChangesetGeometry.toFixed(lat), ChangesetGeometry.toFixed(lon));
+    }
 
-    private static LatLon extractLatLon(final Element elem) {
-        String latStr = elem.getAttribute("lat");
-        String lonStr = elem.getAttribute("lon");
-        if (latStr == null || latStr.isEmpty() || lonStr == null || lonStr.isEmpty()) {
-            return null;
+    private static long coordinateKey(final int lat, final int lon) {
+        return ((long) lat << 32) | (lon & 0xFFFF_FFFFL);
+    }
+
+    private static LatLon toLatLon(final int lat, final int lon) {
+        return new LatLon(ChangesetGeometry.toDegrees(lat), ChangesetGeometry.toDegrees(lon));
+    }
+
+    /**
+     * Parse a coordinate into the fixed-point representation of {@link ChangesetGeometry}.
+     * Coordinates as written by OSM, an optional minus sign and up to three digits followed by up to
+     * seven decimals, are read digit by digit. Anything else goes through {@link Double#parseDouble(String)}.
+     * @return The fixed-point value, or {@link #INVALID_COORDINATE}
+     */
+    private static long parseFixed(final String value) {
+        final int length = value.length();
+        int i = 0;
+        final boolean negative = length > 0 && value.charAt(0) == '-';
+        if (negative) {
+            i++;
+        }
+        long fixed = 0;
+        int digits = 0;
+        for (; i < length && isDigit(value.charAt(i)); i++) {
+            fixed = fixed * 10 + (value.charAt(i) - '0');
+            digits++;
+        }
+        int decimals = 0;
+        if (i < length && value.charAt(i) == '.') {
+            for (i++; i < length && isDigit(value.charAt(i)); i++) {
+                fixed = fixed * 10 + (value.charAt(i) - '0');
+                decimals++;
+            }
+        }
+        if (i != length || digits + decimals == 0 || digits > 3 || decimals > FIXED_DECIMALS) {
+            return parseFixedSlow(value);
         }
+        fixed *= POWERS_OF_TEN[FIXED_DECIMALS - decimals];
+        if (fixed > MAX_FIXED_COORDINATE) {
+            return INVALID_COORDINATE;
+        }
+        return negative ? -fixed : fixed;
+    }
+
+    private static long parseFixedSlow(final String value) {
         try {
-            return new LatLon(Double.parseDouble(latStr), Double.parseDouble(lonStr));
+            final double degrees = Double.parseDouble(value);
+            return Math.abs(degrees) <= 180 ? ChangesetGeometry.toFixed(degrees) : INVALID_COORDINATE;
         } catch (NumberFormatException e) {
-            return null;
+            return INVALID_COORDINATE;
         }
     }
 
-    private static List<LatLon> extractWayCoordinates(final Element wayElem) {
-        List<LatLon> coordinates = new ArrayList<>();
-        org.w3c.dom.Node child = wayElem.getFirstChild();
-        while (child != null) {
-            if (child instanceof Element) {
-                Element elem = (Element) child;
-                if ("nd".equals(elem.getTagName())) {
-                    LatLon latLon = extractLatLon(elem);
-                    if (latLon != null) {
-                        coordinates.add(latLon);
-                    }
-                }
-            }
-            child = child.getNextSibling();
-        }
-        return coordinates;
-    }
-
-    private static Map<String, String> extractTags(final Element elem) {
-        Map<String, String> tags = new HashMap<>();
-        org.w3c.dom.Node child = elem.getFirstChild();
-        while (child != null) {
-            if (child instanceof Element) {
-                Element tag = (Element) child;
-                if ("tag".equals(tag.getTagName())) {
-                    String key = tag.getAttribute("k");
-                    String value = tag.getAttribute("v");
-                    if (key != null && !key.isEmpty()) {
-                        tags.put(key, value);
-                    }
-                }
-            }
-            child = child.getNextSibling();
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // --- XML helper methods working on the current parser event ---
+
+    private static boolean isOsmElement(final String name) {
+        return "node".equals(name) || "way".equals(name) || "relation".equals(name);
+    }
+
+    private void extractCoordinate(final XMLStreamReader parser) {
+        String latStr = parser.getAttributeValue(null, "lat");
+        String lonStr = parser.getAttributeValue(null, "lon");
+        if (latStr == null || lonStr == null) {
+            return;
+        }
+        final long lat = parseFixed(latStr);
+        final long lon = parseFixed(lonStr);
+        if (lat == INVALID_COORDINATE || lon == INVALID_COORDINATE) {
+            return;
+        }
+        if (coordinateBufferSize + 2 > coordinateBuffer.length) {
+            coordinateBuffer = Arrays.copyOf(coordinateBuffer, coordinateBuffer.length * 2);
         }
-        return tags;
+        coordinateBuffer[coordinateBufferSize++] = (int) lat;
+        coordinateBuffer[coordinateBufferSize++] = (int) lon;
     }
 
-    private static Element getFirstChildOsmElement(final Element parent) {
-        org.w3c.dom.Node child = parent.getFirstChild();
-        while (child != null) {
-            if (child instanceof Element) {
-                String name = ((Element) child).getTagName();
-                if ("node".equals(name) || "way".equals(name) || "relation".equals(name)) {
-                    return (Element) child;
-                }
+    private void extractTag(final XMLStreamReader parser) {
+        if (compact) {
+            // The compact geometry does not keep tags
+            return;
+        }
+        String key = parser.getAttributeValue(null, "k");
+        String value = parser.getAttributeValue(null, "v");
+        if (key != null && !key.isEmpty()) {
+            putTag(intern(key), intern(value == null ? "" : value));
+        }
+    }
+
+    // --- Tag buffer of the element being read ---
+
+    private void putTag(final String key, final String value) {
+        for (int i = 0; i < tagBufferSize; i += 2) {
+            if (tagBuffer[i].equals(key)) {
+                tagBuffer[i + 1] = value;
+                return;
             }
-            child = child.getNextSibling();
         }
-        return null;
+        if (tagBufferSize + 2 > tagBuffer.length) {
+            tagBuffer = Arrays.copyOf(tagBuffer, tagBuffer.length * 2);
+        }
+        tagBuffer[tagBufferSize++] = key;
+        tagBuffer[tagBufferSize++] = value;
     }
 
-    private static Element getDirectChild(final Element parent, final String childName) {
-        org.w3c.dom.Node child = parent.getFirstChild();
-        while (child != null) {
-            if (child instanceof Element && childName.equals(((Element) child).getTagName())) {
-                return (Element) child;
+    private String intern(final String s) {
+        String pooled = stringPool.putIfAbsent(s, s);
+        return pooled != null ? pooled : s;
+    }
+
+    /**
+     * Skip the rest of the current element, including all of its children.
+     * The parser is positioned on a start tag and is left on the matching end tag.
+     */
+    private static void skipElement(final XMLStreamReader parser) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && parser.hasNext()) {
+            int event = parser.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
             }
-            child = child.getNextSibling();
         }
-        return null;
     }
 }
@@ -0,0 +1,77 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * A stream failing with an {@link IOException} once more than a given number of bytes was read from it.
+ * Used on decompressed content, where the Content-Length header does not tell the real size.
+ * Reading also fails once the reading thread is interrupted, so a download can be cancelled.
+ */
+final class LimitedInputStream extends FilterInputStream {
+    private final long limit;
+    private long count;
+
+    /**
+     * Create a new {@link LimitedInputStream}
+     * @param in The stream to read from
+     * @param limit The maximum number of bytes to read
+     */
+    LimitedInputStream(InputStream in, long limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            count(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+            count(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Get the number of bytes read so far
+     * @return The byte count
+     */
+    long getCount() {
+        return count;
+    }
+
+    private void count(long n) throws IOException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Download cancelled");
+        }
+        count += n;
+        if (count > limit) {
+            throw new IOException(String.format(
+                    "Changeset file is too large to load: aborted after %.1f MB (maximum allowed: %d MB).",
+                    count / (1024.0 * 1024.0), limit / (1024 * 1024)));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openstreetmap.josm.plugins.changeset.util.ChangesetController.OsmchaResult;
+
+/**
+ * A memory cache of OSMCha changeset pages, so paging back and forth through an area does not query OSMCha again.
+ * <p>
+ * Pages are keyed by platform, bbox and page number. They expire after a short time, because new changesets
+ * move the older ones to later pages.
+ * @author ruben
+ */
+public final class OsmchaPageCache {
+    /** Maximum number of pages kept */
+    private static final int MAX_PAGES = 64;
+
+    /** Cached pages, in access order */
+    private static final Map<String, CachedPage> CACHE = new LinkedHashMap<String, CachedPage>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+
+    private OsmchaPageCache() {
+        // Hide constructor
+    }
+
+    private static final class CachedPage {
+        final OsmchaResult result;
+        final long expires;
+
+        CachedPage(OsmchaResult result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Get a page of the current platform
+     * @param bbox The bounding box (minLon,minLat,maxLon,maxLat)
+     * @param page The page number (1-based)
+     * @return The page, or {@code null} if it is not cached or has expired
+     */
+    public static synchronized OsmchaResult get(String bbox, int page) {
+        String key = getKey(bbox, page);
+        CachedPage entry = CACHE.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expires > 0) {
+            CACHE.remove(key);
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * Add a page of the current platform
+     * @param bbox The bounding box (minLon,minLat,maxLon,maxLat)
+     * @param page The page number (1-based)
+     * @param result The page
+     */
+    public static synchronized void put(String bbox, int page, OsmchaResult result) {
+        int ttl = Config.getOsmchaCacheTtl();
+        if (ttl <= 0) {
+            return;
+        }
+        CACHE.put(getKey(bbox, page), new CachedPage(result, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl)));
+    }
+
+    /**
+     * Remove all pages, e.g. because the user asked for the changesets of an area again
+     */
+    public static synchronized void clear() {
+        CACHE.clear();
+    }
+
+    private static String getKey(String bbox, int page) {
+        return Config.getPlatform().name() + '/' + bbox + '/' + page;
+    }
+}
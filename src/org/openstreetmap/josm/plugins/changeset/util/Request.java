@@ -1,8 +1,21 @@
 // License: MIT. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.changeset.util;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.zip.GZIPInputStream;
 
 import org.openstreetmap.josm.tools.HttpClient;
 import org.openstreetmap.josm.tools.HttpClient.Response;
@@ -13,13 +26,58 @@ import org.openstreetmap.josm.tools.Logging;
  * @author ruben
  */
 public final class Request {
-    /** Maximum response size for downloads (50 MB) */
+    /** Default maximum response size for downloads (50 MB), see {@link Config#getMaxDownloadSize()} */
     public static final long MAX_DOWNLOAD_SIZE = 50L * 1024 * 1024;
+    /** The content encoding {@link Response#getContent()} can decode, it does not decode deflate */
+    private static final String ACCEPT_ENCODING = "gzip";
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final int HTTP_GATEWAY_TIMEOUT = 504;
+    /** Delay before the first retry, in milliseconds */
+    private static final long RETRY_BASE_DELAY = 1000;
+    /** Longest delay before a retry, in milliseconds. A server asking for a longer wait is not retried. */
+    private static final long MAX_RETRY_DELAY = 30_000;
+    /** The first two bytes of a gzip file */
+    private static final int GZIP_MAGIC = 0x1f8b;
 
     private Request() {
         // Hide constructor
     }
 
+    /**
+     * A consumer of a response body, called while the body is still being received
+     * @param <T> The type of the result produced from the body
+     */
+    @FunctionalInterface
+    public interface ContentHandler<T> {
+        /**
+         * Consume the response body
+         * @param content The response body stream, closed by the caller afterwards
+         * @return The result
+         * @throws IOException if the body could not be read
+         */
+        T handle(InputStream content) throws IOException;
+    }
+
+    /**
+     * Thrown when a server stays busy or fails with a server error
+     */
+    static final class BusyException extends IOException {
+        private final int responseCode;
+
+        BusyException(String host, int responseCode) {
+            super(String.format("%s is busy (HTTP %d), try again later.", host, responseCode));
+            this.responseCode = responseCode;
+        }
+
+        /**
+         * Get the status code of the last response
+         * @return The HTTP status code
+         */
+        int getResponseCode() {
+            return responseCode;
+        }
+    }
+
     /**
      * Get a URL
      * @param url The url to GET
@@ -27,23 +85,7 @@ public final class Request {
      * @throws IOException if we couldn't connect or the response is too large
      */
     public static String sendGET(String url) throws IOException {
-        Logging.trace(url);
-        HttpClient client = HttpClient.create(new URL(url));
-        Response response = client.connect();
-        String result = null;
-        if (response.getResponseCode() == 200) {
-            long contentLength = response.getContentLength();
-            if (contentLength > MAX_DOWNLOAD_SIZE) {
-                response.disconnect();
-                throw new IOException(String.format(
-                        "Changeset file is too large to load: %.1f MB (maximum allowed: %d MB).",
-                        contentLength / (1024.0 * 1024.0),
-                        MAX_DOWNLOAD_SIZE / (1024 * 1024)));
-            }
-            result = response.fetchContent();
-        }
-        response.disconnect();
-        return result;
+        return sendGET(url, Request::readString);
     }
 
     /**
@@ -54,25 +96,7 @@ public final class Request {
      * @throws IOException if we couldn't connect or the response is too large
      */
     public static String sendGETWithAuth(String url, String token) throws IOException {
-        Logging.trace(url);
-        HttpClient client = HttpClient.create(new URL(url));
-        client.setHeader("Authorization", "Token " + token);
-        client.setReadTimeout(180 * 1000);
-        Response response = client.connect();
-        String result = null;
-        if (response.getResponseCode() == 200) {
-            long contentLength = response.getContentLength();
-            if (contentLength > MAX_DOWNLOAD_SIZE) {
-                response.disconnect();
-                throw new IOException(String.format(
-                        "Changeset file is too large to load: %.1f MB (maximum allowed: %d MB).",
-                        contentLength / (1024.0 * 1024.0),
-                        MAX_DOWNLOAD_SIZE / (1024 * 1024)));
-            }
-            result = response.fetchContent();
-        }
-        response.disconnect();
-        return result;
+        return sendGETWithAuth(url, token, Request::readString);
     }
 
     /**
@@ -81,22 +105,290 @@ public final class Request {
      * @param body The request body
      * @param timeoutSeconds The read timeout in seconds (0 for default)
      * @return The result (or null)
-     * @throws IOException if we couldn't connect
+     * @throws IOException if we couldn't connect or the response is too large
      */
     public static String sendPOST(String url, String body, int timeoutSeconds) throws IOException {
+        return sendPOST(url, body, timeoutSeconds, Request::readString);
+    }
+
+    /**
+     * Get a URL and hand the response body to a handler as it arrives, instead of buffering it first
+     * @param url The url to GET
+     * @param handler The handler consuming the response body
+     * @param <T> The type of the result
+     * @return The result of the handler (or null if the response was not 200)
+     * @throws IOException if we couldn't connect, the response is too large or the handler failed
+     */
+    public static <T> T sendGET(String url, ContentHandler<T> handler) throws IOException {
         Logging.trace(url);
-        HttpClient client = HttpClient.create(new URL(url), "POST")
-                .setRequestBody(body.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        Response response = connect(new URL(url), u -> HttpClient.create(u)
+                .setHeader("Accept-Encoding", ACCEPT_ENCODING));
+        try {
+            if (response.getResponseCode() != 200) {
+                return null;
+            }
+            checkContentLength(response);
+            return handleContent(response, handler);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Get a URL with an Authorization header and hand the response body to a handler as it arrives
+     * @param url The url to GET
+     * @param token The authorization token (sent as "Token {token}")
+     * @param handler The handler consuming the response body
+     * @param <T> The type of the result
+     * @return The result of the handler (or null if the response was not 200)
+     * @throws IOException if we couldn't connect, the response is too large or the handler failed
+     */
+    public static <T> T sendGETWithAuth(String url, String token, ContentHandler<T> handler) throws IOException {
+        Logging.trace(url);
+        Response response = connect(new URL(url), u -> HttpClient.create(u)
+                .setHeader("Accept-Encoding", ACCEPT_ENCODING)
+                .setHeader("Authorization", "Token " + token)
+                .setReadTimeout(180 * 1000));
+        try {
+            if (response.getResponseCode() != 200) {
+                return null;
+            }
+            checkContentLength(response);
+            return handleContent(response, handler);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Send a POST request and hand the response body to a handler as it arrives, instead of buffering it first
+     * @param url The url to POST to
+     * @param body The request body
+     * @param timeoutSeconds The read timeout in seconds (0 for default)
+     * @param handler The handler consuming the response body
+     * @param <T> The type of the result
+     * @return The result of the handler (or null if the response was not 200)
+     * @throws IOException if we couldn't connect, the response is too large or the handler failed
+     */
+    public static <T> T sendPOST(String url, String body, int timeoutSeconds, ContentHandler<T> handler) throws IOException {
+        Logging.trace(url);
+        Response response = connect(new URL(url), u -> createPOST(u, body, timeoutSeconds));
+        try {
+            if (response.getResponseCode() != 200) {
+                return null;
+            }
+            checkContentLength(response);
+            return handleContent(response, handler);
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Get a URL on a background thread. Cancelling the future aborts the download.
+     * @param url The url to GET
+     * @return The future result (null if the response was not 200)
+     */
+    public static CompletableFuture<String> sendGETAsync(String url) {
+        return AsyncRequest.submit(() -> sendGET(url));
+    }
+
+    /**
+     * Get a URL on a background thread and hand the response body to a handler as it arrives.
+     * Cancelling the future aborts the download.
+     * @param url The url to GET
+     * @param handler The handler consuming the response body
+     * @param <T> The type of the result
+     * @return The future result of the handler (null if the response was not 200)
+     */
+    public static <T> CompletableFuture<T> sendGETAsync(String url, ContentHandler<T> handler) {
+        return AsyncRequest.submit(() -> sendGET(url, handler));
+    }
+
+    /**
+     * Send a POST request on a background thread and hand the response body to a handler as it arrives.
+     * Cancelling the future aborts the download.
+     * @param url The url to POST to
+     * @param body The request body
+     * @param timeoutSeconds The read timeout in seconds (0 for default)
+     * @param handler The handler consuming the response body
+     * @param <T> The type of the result
+     * @return The future result of the handler (null if the response was not 200)
+     */
+    public static <T> CompletableFuture<T> sendPOSTAsync(String url, String body, int timeoutSeconds,
+            ContentHandler<T> handler) {
+        return AsyncRequest.submit(() -> sendPOST(url, body, timeoutSeconds, handler));
+    }
+
+    private static HttpClient createPOST(URL url, String body, int timeoutSeconds) {
+        HttpClient client = HttpClient.create(url, "POST")
+                .setRequestBody(body.getBytes(StandardCharsets.UTF_8));
+        client.setHeader("Accept-Encoding", ACCEPT_ENCODING);
         if (timeoutSeconds > 0) {
             client.setReadTimeout(timeoutSeconds * 1000);
         }
-        Response response = client.connect();
-        String result = null;
-        if (response.getResponseCode() == 200) {
-            result = response.fetchContent();
+        return client;
+    }
+
+    /**
+     * Get the number of retried requests per server, to see how often servers are busy
+     * @return The retry counts, by host name
+     */
+    public static Map<String, Long> getRetryCounts() {
+        return CircuitBreaker.getRetryCounts();
+    }
+
+    /**
+     * Connect to a server, retrying while it is busy or unreachable. Retries wait with exponential backoff
+     * and jitter, or as long as the server asks for with a Retry-After header. Requests to a server that
+     * keeps failing fail fast, see {@link CircuitBreaker}.
+     * @param url The URL to connect to
+     * @param factory Creates the client for every try
+     * @return The response, which is not a retriable error
+     * @throws IOException if the server could not be reached or stayed busy
+     */
+    private static Response connect(URL url, Function<URL, HttpClient> factory) throws IOException {
+        CircuitBreaker breaker = CircuitBreaker.forUrl(url);
+        int maxRetries = Config.getMaxRetries();
+        for (int attempt = 0;; attempt++) {
+            breaker.acquire();
+            try {
+                Response response;
+                try {
+                    HttpClient client = factory.apply(url);
+                    AsyncRequest.connecting(client);
+                    response = client.connect();
+                    AsyncRequest.connected(response);
+                } catch (SocketTimeoutException e) {
+                    // Waiting for the timeout again would keep the user waiting for too long. A query that takes
+                    // too long says nothing about the server being down, and is split by the Overpass fallback.
+                    throw e;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    breaker.failure();
+                    if (attempt >= maxRetries) {
+                        throw e;
+                    }
+                    Logging.info("Could not connect to " + url.getHost() + " (" + e.getMessage() + "), retrying");
+                    waitForRetry(breaker, getBackoff(attempt));
+                    continue;
+                }
+                int code = response.getResponseCode();
+                if (code < 500 && code != HTTP_TOO_MANY_REQUESTS) {
+                    breaker.success();
+                    return response;
+                }
+                if (code != HTTP_GATEWAY_TIMEOUT) {
+                    // Like a read timeout, a gateway timeout is a query that is too large, not a server that is down
+                    breaker.failure();
+                }
+                long delay = getRetryAfter(response);
+                response.disconnect();
+                if (!isRetriable(code) || attempt >= maxRetries || delay > MAX_RETRY_DELAY) {
+                    throw new BusyException(url.getHost(), code);
+                }
+                Logging.info(url.getHost() + " answered HTTP " + code + ", retrying");
+                waitForRetry(breaker, delay >= 0 ? delay : getBackoff(attempt));
+            } finally {
+                // A trial request that failed in the client must not keep the server blocked
+                breaker.release();
+            }
         }
-        response.disconnect();
-        return result;
+    }
+
+    private static boolean isRetriable(int code) {
+        return code == HTTP_TOO_MANY_REQUESTS || code == 502 || code == 503 || code == HTTP_GATEWAY_TIMEOUT;
+    }
+
+    /**
+     * Get the time to wait before a retry, doubling with every attempt. The jitter keeps clients that failed
+     * at the same time from retrying at the same time.
+     */
+    private static long getBackoff(int attempt) {
+        long delay = Math.min(MAX_RETRY_DELAY, RETRY_BASE_DELAY << Math.min(attempt, 16));
+        return ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+    }
+
+    /**
+     * Get the time the server asks to wait with a Retry-After header
+     * @return The delay in milliseconds, or -1 if there is no valid header
+     */
+    private static long getRetryAfter(Response response) {
+        String value = response.getHeaderField("Retry-After");
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value)) * 1000;
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ex) {
+                return -1;
+            }
+        }
+    }
+
+    private static void waitForRetry(CircuitBreaker breaker, long delay) throws IOException {
+        breaker.retried();
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    /**
+     * Reject a response up front if the server announces a body larger than the download budget
+     */
+    private static void checkContentLength(Response response) throws IOException {
+        long maxSize = Config.getMaxDownloadSize();
+        long contentLength = response.getContentLength();
+        if (contentLength > maxSize) {
+            response.disconnect();
+            throw new IOException(String.format(
+                    "Changeset file is too large to load: %.1f MB (maximum allowed: %d MB).",
+                    contentLength / (1024.0 * 1024.0),
+                    maxSize / (1024 * 1024)));
+        }
+    }
+
+    /**
+     * Hand the response body to a handler. The body is counted while it is read, so a response without
+     * Content-Length (chunked, or compressed) is cut off as soon as it exceeds the download budget.
+     */
+    private static <T> T handleContent(Response response, ContentHandler<T> handler) throws IOException {
+        try (LimitedInputStream content = new LimitedInputStream(decompress(response.getContent()),
+                Config.getMaxDownloadSize())) {
+            try {
+                return handler.handle(content);
+            } finally {
+                Logging.debug("Read {0} bytes of changeset data", content.getCount());
+            }
+        }
+    }
+
+    private static String readString(InputStream content) throws IOException {
+        return new String(content.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Decompress a stream holding a gzip file, like an {@code .adiff.gz}. Content encodings are already
+     * removed by {@link Response#getContent()}, but a compressed file may be served as it is.
+     * @param in The stream to read from
+     * @return A stream returning the uncompressed content
+     * @throws IOException if the gzip header could not be read
+     */
+    static InputStream decompress(InputStream in) throws IOException {
+        InputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int magic = (buffered.read() << 8) | buffered.read();
+        buffered.reset();
+        return magic == GZIP_MAGIC ? new GZIPInputStream(buffered, 64 * 1024) : buffered;
     }
 
     /**
@@ -104,7 +396,7 @@ public final class Request {
      * @param url The url to POST to
      * @param body The request body
      * @return The result (or null)
-     * @throws IOException if we couldn't connect
+     * @throws IOException if we couldn't connect or the response is too large
      */
     public static String sendPOST(String url, String body) throws IOException {
         return sendPOST(url, body, 0);
@@ -0,0 +1,113 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Coalesces concurrent calls doing the same work. The first caller for a key runs the task, callers
+ * arriving while it runs wait for its result instead of repeating the work.
+ * <p>
+ * If the caller running the task was cancelled, or the result is not one to share, e.g. because it is incomplete,
+ * the waiting callers that were not cancelled themselves run the task again. A cancelled caller is one whose
+ * thread was interrupted, like an {@link AsyncRequest} that was cancelled. Its task may end with any error or
+ * a partial result, depending on where the closed connection interrupted it.
+ * @param <V> The type of the result
+ * @author ruben
+ */
+final class SingleFlight<V> {
+    private final Map<String, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final Predicate<? super V> shareable;
+
+    /**
+     * Create a new {@link SingleFlight} sharing every result
+     */
+    SingleFlight() {
+        this(result -> true);
+    }
+
+    /**
+     * Create a new {@link SingleFlight}
+     * @param shareable Tells whether a result that is not {@code null} may be handed to the waiting callers
+     */
+    SingleFlight(Predicate<? super V> shareable) {
+        this.shareable = shareable;
+    }
+
+    /**
+     * Run a task, or wait for the same task started by another caller
+     * @param key The key identifying the work of the task
+     * @param task The task
+     * @return The result of the task
+     * @throws IOException if the task failed
+     */
+    V run(String key, AsyncRequest.Task<V> task) throws IOException {
+        while (true) {
+            CompletableFuture<V> flight = new CompletableFuture<>();
+            CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+            if (running == null) {
+                boolean shared = false;
+                try {
+                    V result = task.call();
+                    shared = !Thread.currentThread().isInterrupted() && (result == null || shareable.test(result));
+                    if (shared) {
+                        flight.complete(result);
+                    }
+                    return result;
+                } catch (IOException | RuntimeException e) {
+                    shared = !Thread.currentThread().isInterrupted();
+                    if (shared) {
+                        flight.completeExceptionally(e);
+                    }
+                    throw e;
+                } finally {
+                    flights.remove(key, flight);
+                    if (!shared) {
+                        // Tells the waiting callers to run the task themselves
+                        flight.cancel(false);
+                    }
+                }
+            }
+            try {
+                return await(running);
+            } catch (CancellationException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Interrupted while waiting for a running request");
+                }
+                // The caller running the task was cancelled, but this one still wants the result
+            }
+        }
+    }
+
+    /**
+     * Check if a task is running
+     * @param key The key identifying the work of the task
+     * @return {@code true} if a caller is running the task for the key
+     */
+    boolean isRunning(String key) {
+        return flights.containsKey(key);
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a running request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link AdiffStitcher}
+ * @author ruben
+ */
+class AdiffStitcherTest {
+    private static final long BUDGET = 1024 * 1024;
+
+    /**
+     * An object created in one slice and deleted in a later one did not exist before or after the window
+     */
+    @Test
+    void testCreatedAndDeletedIsDropped() throws IOException {
+        String adiff = stitch(
+                "<action type=\"create\"><node id=\"1\" version=\"1\" lat=\"1.0\" lon=\"1.0\"/></action>",
+                "<action type=\"delete\"><old><node id=\"1\" version=\"1\" lat=\"1.0\" lon=\"1.0\"/></old>"
+                        + "<new><node id=\"1\" version=\"2\" visible=\"false\"/></new></action>");
+        assertFalse(adiff.contains("<action"));
+        assertTrue(adiff.endsWith("</osm>\n"));
+    }
+
+    /**
+     * An object deleted in one slice and created again in a later one was modified over the whole window
+     */
+    @Test
+    void testDeletedAndRecreatedIsModified() throws IOException {
+        String adiff = stitch(
+                "<action type=\"delete\"><old><node id=\"1\" version=\"1\" lat=\"1.0\" lon=\"1.0\"/></old>"
+                        + "<new><node id=\"1\" version=\"2\" visible=\"false\"/></new></action>",
+                "<action type=\"create\"><node id=\"1\" version=\"3\" lat=\"2.0\" lon=\"2.0\"/></action>");
+        assertEquals(1, count(adiff, "<action"));
+        assertTrue(adiff.contains("<action type=\"modify\">"));
+        assertTrue(getFirst(adiff, "old").contains("version=\"1\""));
+        assertTrue(getFirst(adiff, "new").contains("version=\"3\""));
+    }
+
+    /**
+     * An object changed in several slices keeps the old version of the first slice and the new one of the last
+     */
+    @Test
+    void testFirstOldAndLastNew() throws IOException {
+        String adiff = stitch(
+                modify("1", "1", "2"),
+                modify("1", "2", "3") + modify("2", "5", "6"),
+                modify("1", "3", "4"));
+        assertEquals(2, count(adiff, "<action"));
+        assertTrue(getFirst(adiff, "old").contains("version=\"1\""));
+        assertTrue(getFirst(adiff, "new").contains("version=\"4\""));
+        assertFalse(adiff.contains("version=\"2\""));
+        assertFalse(adiff.contains("version=\"3\""));
+        // In the order the objects were first changed
+        assertTrue(adiff.indexOf("id=\"1\"") < adiff.indexOf("id=\"2\""));
+    }
+
+    /**
+     * The slices of one window can not hold more than the budget together
+     */
+    @Test
+    void testBudgetIsShared() throws IOException {
+        String slice = modify("1", "1", "2");
+        AdiffStitcher.Budget budget = new AdiffStitcher.Budget(3 * getSize(slice) / 2);
+        AdiffStitcher.read(toStream(slice), budget);
+        assertThrows(IOException.class, () -> AdiffStitcher.read(toStream(slice), budget));
+    }
+
+    /**
+     * A slice the server failed to answer does not use up the budget
+     */
+    @Test
+    void testFailedSliceIsGivenBack() throws IOException {
+        String slice = modify("1", "1", "2");
+        AdiffStitcher.Budget budget = new AdiffStitcher.Budget(getSize(slice));
+        for (int i = 0; i < 3; i++) {
+            assertThrows(AdiffStitcher.QueryFailedException.class, () -> AdiffStitcher.read(
+                    toStream(slice + "<remark>runtime error: Query timed out</remark>"), budget));
+        }
+        assertEquals(1, AdiffStitcher.read(toStream(slice), budget).size());
+    }
+
+    private static String modify(String id, String oldVersion, String newVersion) {
+        return "<action type=\"modify\">"
+                + "<old><way id=\"" + id + "\" version=\"" + oldVersion + "\"><nd ref=\"1\" lat=\"1.0\" lon=\"1.0\"/></way></old>"
+                + "<new><way id=\"" + id + "\" version=\"" + newVersion + "\"><nd ref=\"1\" lat=\"1.0\" lon=\"1.0\"/></way></new>"
+                + "</action>";
+    }
+
+    private static long getSize(String slice) throws IOException {
+        return AdiffStitcher.read(toStream(slice), new AdiffStitcher.Budget(BUDGET)).get(0).size();
+    }
+
+    private static String stitch(String... slices) throws IOException {
+        AdiffStitcher.Budget budget = new AdiffStitcher.Budget(BUDGET);
+        List<List<AdiffStitcher.Change>> changes = new ArrayList<>();
+        for (String slice : slices) {
+            changes.add(AdiffStitcher.read(toStream(slice), budget));
+        }
+        try (InputStream in = AdiffStitcher.stitch(changes)) {
+            String adiff = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(changes.stream().allMatch(List::isEmpty));
+            return adiff;
+        }
+    }
+
+    private static InputStream toStream(String actions) {
+        return new ByteArrayInputStream(("<osm version=\"0.6\">" + actions + "</osm>").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the content of the first {@code <old>} or {@code <new>} container. The attributes of the elements
+     * in it may be written in any order.
+     */
+    private static String getFirst(String adiff, String container) {
+        int start = adiff.indexOf("<" + container + ">");
+        return adiff.substring(start, adiff.indexOf("</" + container + ">", start));
+    }
+
+    private static int count(String text, String part) {
+        return (int) Arrays.stream(text.split(part, -1)).count() - 1;
+    }
+}
@@ -0,0 +1,84 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for reading OSMCha pages in {@link ChangesetController}
+ * @author ruben
+ */
+class ChangesetControllerTest {
+    private static final String FEATURE = "{\"type\":\"Feature\",\"id\":101,"
+            + "\"geometry\":{\"type\":\"Polygon\",\"coordinates\":[[[1.0,2.0],[3.0,4.0],[1.0,2.0]]]},"
+            + "\"properties\":{\"check_user\":null,\"reasons\":[{\"id\":1,\"name\":\"possible import\"}],"
+            + "\"tags\":[],\"user\":\"mapper\",\"date\":\"2024-05-01T10:00:00Z\",\"is_suspect\":false,"
+            + "\"create\":12,\"modify\":3,\"delete\":1,\"comment\":\"fix \\\"roads\\\"\"}}";
+
+    /**
+     * The fields shown in the list are read, the geometry and the other properties are skipped
+     */
+    @Test
+    void testPage() {
+        ChangesetController.OsmchaResult result = read("{\"type\":\"FeatureCollection\",\"count\":75,"
+                + "\"features\":[" + FEATURE + ",{\"id\":102,\"properties\":{\"user\":\"other\"}}],"
+                + "\"next\":\"https://osmcha.org/api/v1/changesets/?page=2\"}");
+        assertEquals(75, result.getTotalCount());
+        List<ChangesetBeen> changesets = result.getChangesets();
+        assertEquals(2, changesets.size());
+        ChangesetBeen first = changesets.get(0);
+        assertEquals(101, first.getChangesetId());
+        assertEquals("mapper", first.getUser());
+        assertEquals("2024-05-01T10:00:00Z", first.getDate());
+        assertEquals(12, first.getCreate());
+        assertEquals(3, first.getModify());
+        assertEquals(1, first.getDelete());
+        ChangesetBeen second = changesets.get(1);
+        assertEquals(102, second.getChangesetId());
+        assertEquals("other", second.getUser());
+        assertEquals("", second.getDate());
+    }
+
+    /**
+     * A page without a count is read as a single page
+     */
+    @Test
+    void testMissingCount() {
+        ChangesetController.OsmchaResult result = read("{\"features\":[" + FEATURE + "]}");
+        assertEquals(0, result.getTotalCount());
+        assertEquals(1, result.getTotalPages());
+        assertEquals(1, result.getChangesets().size());
+        assertEquals(101, result.getChangesets().get(0).getChangesetId());
+    }
+
+    /**
+     * A page without features, like an error answer, has no changesets
+     */
+    @Test
+    void testMissingFeatures() {
+        ChangesetController.OsmchaResult result = read("{\"count\":40,\"detail\":{\"reason\":[\"Invalid page.\"]}}");
+        assertEquals(40, result.getTotalCount());
+        assertTrue(result.getChangesets().isEmpty());
+        assertTrue(read("{}").getChangesets().isEmpty());
+    }
+
+    /**
+     * An answer that is not an object has no changesets
+     */
+    @Test
+    void testNotAnObject() {
+        ChangesetController.OsmchaResult result = read("[" + FEATURE + "]");
+        assertEquals(0, result.getTotalCount());
+        assertTrue(result.getChangesets().isEmpty());
+    }
+
+    private static ChangesetController.OsmchaResult read(String json) {
+        return ChangesetController.readOsmchaPage(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
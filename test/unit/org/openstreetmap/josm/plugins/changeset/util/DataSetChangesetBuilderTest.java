@@ -0,0 +1,164 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.osm.DataSet;
+import org.openstreetmap.josm.data.osm.Way;
+import org.openstreetmap.josm.plugins.changeset.util.DataSetChangesetBuilder.BoundedChangesetDataSet;
+import org.openstreetmap.josm.testutils.annotations.BasicPreferences;
+
+/**
+ * Test class for {@link DataSetChangesetBuilder}
+ * @author ruben
+ */
+@BasicPreferences
+class DataSetChangesetBuilderTest {
+    private static final String CHANGESET_ID = "100";
+
+    /**
+     * A way whose nodes were moved by the changeset keeps its version and the changeset of its last own change
+     */
+    private static final String MOVED_WAY_NODES = "<osm version=\"0.6\">"
+            + "<action type=\"modify\">"
+            + "<old><node id=\"1\" version=\"1\" changeset=\"50\" lat=\"1.0\" lon=\"1.0\"/></old>"
+            + "<new><node id=\"1\" version=\"2\" changeset=\"100\" lat=\"1.5\" lon=\"1.0\"/></new>"
+            + "</action>"
+            + "<action type=\"modify\">"
+            + "<old><way id=\"10\" version=\"3\" changeset=\"50\">"
+            + "<nd ref=\"1\" lat=\"1.0\" lon=\"1.0\"/><nd ref=\"2\" lat=\"2.0\" lon=\"2.0\"/></way></old>"
+            + "<new><way id=\"10\" version=\"3\" changeset=\"50\">"
+            + "<nd ref=\"1\" lat=\"1.5\" lon=\"1.0\"/><nd ref=\"2\" lat=\"2.0\" lon=\"2.0\"/></way></new>"
+            + "</action>"
+            + "</osm>";
+
+    /**
+     * Changes of another changeset in the same area and time window, as returned by Overpass API
+     */
+    private static final String OTHER_CHANGESET = "<osm version=\"0.6\">"
+            + "<action type=\"create\"><node id=\"3\" version=\"1\" changeset=\"200\" lat=\"3.0\" lon=\"3.0\"/></action>"
+            + "<action type=\"modify\">"
+            + "<old><way id=\"11\" version=\"1\" changeset=\"50\">"
+            + "<nd ref=\"4\" lat=\"4.0\" lon=\"4.0\"/><nd ref=\"5\" lat=\"5.0\" lon=\"5.0\"/></way></old>"
+            + "<new><way id=\"11\" version=\"2\" changeset=\"200\">"
+            + "<nd ref=\"4\" lat=\"4.0\" lon=\"4.0\"/><nd ref=\"5\" lat=\"5.5\" lon=\"5.0\"/></way></new>"
+            + "</action>"
+            + "<action type=\"delete\">"
+            + "<old><node id=\"6\" version=\"1\" changeset=\"50\" lat=\"6.0\" lon=\"6.0\"/></old>"
+            + "<new><node id=\"6\" version=\"2\" changeset=\"200\" visible=\"false\"/></new>"
+            + "</action>"
+            + "</osm>";
+
+    private static ChangesetGeometry build(String adiff, String changesetId) {
+        DataSetChangesetBuilder builder = new DataSetChangesetBuilder();
+        builder.setCompact(true);
+        builder.setChangesetId(changesetId);
+        return builder.build(adiff).getGeometry();
+    }
+
+    /**
+     * A modified way whose version did not change is kept, though its new version names an older changeset
+     */
+    @Test
+    void testWayWithMovedNodesIsKept() {
+        ChangesetGeometry geometry = build(MOVED_WAY_NODES, CHANGESET_ID);
+        assertEquals(2, geometry.getPointCount());
+        assertEquals(2, geometry.getLineCount());
+        assertEquals(ChangesetGeometry.actionCode("modify-old"), geometry.getLineAction(0));
+        assertEquals(ChangesetGeometry.actionCode("modify-new"), geometry.getLineAction(1));
+    }
+
+    /**
+     * Actions whose new version belongs to another changeset are skipped
+     */
+    @Test
+    void testOtherChangesetIsSkipped() {
+        ChangesetGeometry geometry = build(OTHER_CHANGESET, CHANGESET_ID);
+        assertEquals(0, geometry.getPointCount());
+        assertEquals(0, geometry.getLineCount());
+    }
+
+    /**
+     * Without a changeset, all actions are kept
+     */
+    @Test
+    void testAllActionsWithoutChangeset() {
+        ChangesetGeometry geometry = build(OTHER_CHANGESET, null);
+        assertEquals(2, geometry.getPointCount());
+        assertEquals(2, geometry.getLineCount());
+    }
+
+    /**
+     * The parallel build gives the same dataset as the sequential one. The ways form a chain over many chunks,
+     * so the chunks built in parallel create their own nodes for the shared ends, which the merge replaces.
+     */
+    @Test
+    void testParallelBuildMatchesSequential() {
+        int ways = 5000;
+        StringBuilder adiff = new StringBuilder("<osm version=\"0.6\">");
+        for (int i = 0; i < ways; i++) {
+            adiff.append("<action type=\"create\"><way id=\"").append(i).append("\" version=\"1\">")
+                    .append("<nd ref=\"").append(i).append("\" lat=\"").append(i / 1000.0).append("\" lon=\"0.0\"/>")
+                    .append("<nd ref=\"").append(i + 1).append("\" lat=\"").append((i + 1) / 1000.0)
+                    .append("\" lon=\"0.0\"/>")
+                    .append("<tag k=\"ref\" v=\"").append(i).append("\"/></way></action>");
+        }
+        adiff.append("</osm>");
+        DataSetChangesetBuilder builder = new DataSetChangesetBuilder();
+        BoundedChangesetDataSet sequential = builder.build(adiff.toString());
+        builder.setParallel(true);
+        BoundedChangesetDataSet parallel = builder.build(adiff.toString());
+
+        assertEquals(sequential.getBounds(), parallel.getBounds());
+        for (BoundedChangesetDataSet data : new BoundedChangesetDataSet[] {sequential, parallel}) {
+            DataSet dataSet = data.getDataSet();
+            assertEquals(ways + 1, dataSet.getNodes().size());
+            assertEquals(ways, dataSet.getWays().size());
+            Map<String, Way> byRef = new HashMap<>();
+            for (Way way : dataSet.getWays()) {
+                assertEquals("create", way.get("action"));
+                byRef.put(way.get("ref"), way);
+            }
+            for (int i = 0; i + 1 < ways; i++) {
+                Way way = byRef.get(String.valueOf(i));
+                assertNotNull(way);
+                assertSame(way.getNode(1), byRef.get(String.valueOf(i + 1)).getNode(0));
+            }
+        }
+    }
+
+    /**
+     * Coordinates in the OSM format are read digit by digit, others through the general parser,
+     * and values that are not a coordinate drop their node
+     */
+    @Test
+    void testCoordinates() {
+        String[][] coordinates = {
+            {"51.5074123", "-0.1278"},
+            {"-90", "180.0000000"},
+            {"1.5e1", "12.345678912"},
+            {"181.0", "1.0"},
+            {"abc", "1.0"},
+            {"", "1.0"},
+        };
+        StringBuilder adiff = new StringBuilder("<osm version=\"0.6\">");
+        for (String[] coordinate : coordinates) {
+            adiff.append("<action type=\"create\"><node id=\"1\" version=\"1\" lat=\"").append(coordinate[0])
+                    .append("\" lon=\"").append(coordinate[1]).append("\"/></action>");
+        }
+        ChangesetGeometry geometry = build(adiff.append("</osm>").toString(), null);
+        assertEquals(3, geometry.getPointCount());
+        assertEquals(515_074_123, geometry.getPointLat(0));
+        assertEquals(-1_278_000, geometry.getPointLon(0));
+        assertEquals(-900_000_000, geometry.getPointLat(1));
+        assertEquals(1_800_000_000, geometry.getPointLon(1));
+        assertEquals(150_000_000, geometry.getPointLat(2));
+        assertEquals(123_456_789, geometry.getPointLon(2));
+    }
+}
@@ -0,0 +1,101 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link LongObjectMap}
+ * @author ruben
+ */
+class LongObjectMapTest {
+
+    /**
+     * The map keeps all mappings while its table grows, and replaces the value of a known key
+     */
+    @Test
+    void testResize() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        int count = 100_000;
+        for (long key = 0; key < count; key++) {
+            map.put(key, "a" + key);
+        }
+        map.put(7, "b");
+        assertEquals(count, map.size());
+        assertEquals("b", map.get(7));
+        for (long key = 0; key < count; key++) {
+            if (key != 7) {
+                assertEquals("a" + key, map.get(key));
+            }
+        }
+        assertNull(map.get(count));
+        assertNull(map.get(-1));
+    }
+
+    /**
+     * Keys of packed coordinates differ in a few bits only, like the keys of way nodes
+     */
+    @Test
+    void testCollisions() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        for (int lat = 0; lat < 300; lat++) {
+            for (int lon = 0; lon < 300; lon++) {
+                long key = ((long) lat << 32) | lon;
+                map.put(key, key);
+            }
+        }
+        assertEquals(90_000, map.size());
+        for (int lat = 0; lat < 300; lat++) {
+            for (int lon = 0; lon < 300; lon++) {
+                long key = ((long) lat << 32) | lon;
+                assertEquals(Long.valueOf(key), map.get(key));
+            }
+        }
+        assertNull(map.get(300L << 32));
+    }
+
+    /**
+     * Removing keys keeps the other keys of their probe runs reachable
+     */
+    @Test
+    void testRemove() {
+        LongObjectMap<Long> map = new LongObjectMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // A small key range, so puts and removes hit the same keys and runs
+            long key = random.nextInt(20_000) - 10_000L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                expected.put(key, (long) i);
+                map.put(key, (long) i);
+            }
+        }
+        assertEquals(expected.size(), map.size());
+        for (long key = -10_000; key < 10_000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        assertNull(map.remove(20_000));
+    }
+
+    /**
+     * A cleared map is empty and can be filled again
+     */
+    @Test
+    void testClear() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        map.put(1, "a");
+        map.clear();
+        assertEquals(0, map.size());
+        assertNull(map.get(1));
+        map.put(1, "b");
+        assertEquals("b", map.get(1));
+    }
+}
@@ -0,0 +1,158 @@
+// License: MIT. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.changeset.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link SingleFlight}
+ * @author ruben
+ */
+class SingleFlightTest {
+    private static final String KEY = "OSM/100";
+
+    /**
+     * A load that joined a prefetch runs the download itself when the prefetch is cancelled,
+     * even though the closed connection failed the prefetch with a plain {@link IOException}
+     */
+    @Test
+    void testCancelledRunnerFailure() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> prefetch = AsyncRequest.submit(() -> flights.run(KEY, () -> {
+            started.countDown();
+            awaitInterrupt();
+            throw new SocketException("Socket closed");
+        }));
+        started.await();
+        Joiner load = new Joiner(flights, () -> "adiff");
+        prefetch.cancel(true);
+        load.join();
+        assertEquals("adiff", load.result.get());
+        assertEquals(1, load.calls.get());
+    }
+
+    /**
+     * A cancelled runner whose task ended with a partial result does not hand it to the waiting callers
+     */
+    @Test
+    void testCancelledRunnerResult() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<String> prefetch = AsyncRequest.submit(() -> flights.run(KEY, () -> {
+            started.countDown();
+            awaitInterrupt();
+            return "truncated";
+        }));
+        started.await();
+        Joiner load = new Joiner(flights, () -> "adiff");
+        prefetch.cancel(true);
+        load.join();
+        assertEquals("adiff", load.result.get());
+    }
+
+    /**
+     * A result that is not shareable, like an incomplete changeset, is only returned to the caller that ran the task
+     */
+    @Test
+    void testIncompleteResult() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>(result -> !result.startsWith("partial"));
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> runner = AsyncRequest.submit(() -> flights.run(KEY, () -> {
+            started.countDown();
+            awaitLatch(release);
+            return "partial adiff";
+        }));
+        started.await();
+        Joiner load = new Joiner(flights, () -> "adiff");
+        release.countDown();
+        load.join();
+        assertEquals("partial adiff", runner.get());
+        assertEquals("adiff", load.result.get());
+    }
+
+    /**
+     * The failure of a runner that was not cancelled is shared, the waiting callers do not repeat the task
+     */
+    @Test
+    void testSharedFailure() throws Exception {
+        SingleFlight<String> flights = new SingleFlight<>();
+        IOException busy = new IOException("busy");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncRequest.submit(() -> flights.run(KEY, () -> {
+            started.countDown();
+            awaitLatch(release);
+            throw busy;
+        }));
+        started.await();
+        Joiner load = new Joiner(flights, () -> "adiff");
+        release.countDown();
+        load.join();
+        assertSame(busy, load.failure.get());
+        assertEquals(0, load.calls.get());
+    }
+
+    /**
+     * Wait like a blocked socket read, which an interrupt does not end and which keeps the interrupt flag
+     */
+    private static void awaitInterrupt() {
+        while (!Thread.currentThread().isInterrupted()) {
+            LockSupport.park();
+        }
+    }
+
+    private static void awaitLatch(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * A caller that waits for the running task of {@link #KEY}
+     */
+    private static final class Joiner {
+        final AtomicReference<String> result = new AtomicReference<>();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        final AtomicInteger calls = new AtomicInteger();
+        private final Thread thread;
+
+        Joiner(SingleFlight<String> flights, AsyncRequest.Task<String> task) throws InterruptedException {
+            thread = new Thread(() -> {
+                try {
+                    result.set(flights.run(KEY, () -> {
+                        calls.incrementAndGet();
+                        return task.call();
+                    }));
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            thread.start();
+            // Wait until the caller waits for the running task
+            while (thread.getState() != Thread.State.WAITING) {
+                assertTrue(thread.isAlive());
+                Thread.sleep(1);
+            }
+        }
+
+        void join() throws InterruptedException {
+            thread.join(10_000);
+            assertTrue(!thread.isAlive());
+        }
+    }
+}